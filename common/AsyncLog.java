@@ -0,0 +1,288 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Small asynchronous logger shared by the labs.
+//
+// Callers format into a per-thread message and hand it to a bounded,
+// lock-free multi-producer ring; a background thread drains the ring in
+// batches with one write per stream per batch. Disabled levels return a
+// no-op message, so nothing is formatted or allocated for them:
+//
+//     AsyncLog.debug().append("Produced part #").append(id).log();
+//
+// The level comes from -Dlog.level=DEBUG|INFO|WARN|ERROR|OFF (default
+// DEBUG, i.e. everything, as the labs printed before). DEBUG and INFO go
+// to System.out, WARN and ERROR to System.err.
+public final class AsyncLog {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+    
+    private static final int CAPACITY = 8192; // power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int BATCH_BYTES = 64 * 1024;
+    
+    // ring: a slot is free for sequence s when sequences[s & MASK] == s,
+    // and holds a published message for s when it equals s + 1
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final StringBuilder[] texts = new StringBuilder[CAPACITY];
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong(0); // next sequence to claim
+    private static volatile long written = 0;                 // messages handed to the streams
+    
+    private static volatile Level threshold = parseLevel(System.getProperty("log.level"), Level.DEBUG);
+    private static volatile boolean flusherWaiting = false;
+    private static final Thread flusher;
+    
+    private static final ThreadLocal<Message> messages = ThreadLocal.withInitial(Message::new);
+    private static final Message NOOP = new Message();
+    
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+            texts[i] = new StringBuilder(256);
+        }
+        flusher = new Thread(AsyncLog::drainLoop, "async-log");
+        flusher.setDaemon(true);
+        flusher.start();
+        // other shutdown hooks may still log; the daemon flusher keeps
+        // running while they do, this one only drains what is queued
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::flush, "async-log-shutdown"));
+    }
+    
+    private AsyncLog() {}
+    
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+    
+    public static Level parseLevel(String name, Level fallback) {
+        if (name == null || name.isBlank()) return fallback;
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+    
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0 && level != Level.OFF;
+    }
+    
+    public static Message debug() { return message(Level.DEBUG); }
+    public static Message info() { return message(Level.INFO); }
+    public static Message warn() { return message(Level.WARN); }
+    public static Message error() { return message(Level.ERROR); }
+    
+    public static void debug(String text) { debug().append(text).log(); }
+    public static void info(String text) { info().append(text).log(); }
+    public static void warn(String text) { warn().append(text).log(); }
+    public static void error(String text) { error().append(text).log(); }
+    public static void error(String text, Throwable error) { error().append(text).appendStackTrace(error).log(); }
+    
+    private static Message message(Level level) {
+        if (!isEnabled(level)) return NOOP;
+        Message message = messages.get();
+        message.start(level);
+        return message;
+    }
+    
+    // Message under construction on the calling thread
+    public static final class Message {
+        private final StringBuilder text = new StringBuilder(256);
+        private Level level; // null for the shared no-op message
+        
+        private void start(Level level) {
+            this.level = level;
+            text.setLength(0);
+        }
+        
+        public Message append(String value) {
+            if (level != null) text.append(value);
+            return this;
+        }
+        
+        public Message append(char value) {
+            if (level != null) text.append(value);
+            return this;
+        }
+        
+        public Message append(int value) {
+            if (level != null) text.append(value);
+            return this;
+        }
+        
+        public Message append(long value) {
+            if (level != null) text.append(value);
+            return this;
+        }
+        
+        public Message append(Object value) {
+            if (level != null) text.append(value);
+            return this;
+        }
+        
+        // the stack trace on the lines after the text, so it stays with its message
+        public Message appendStackTrace(Throwable error) {
+            if (level == null) return this;
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            text.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+            return this;
+        }
+        
+        // fixed-point formatting like %.Nf, without String.format
+        public Message append(double value, int decimals) {
+            if (level == null) return this;
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                text.append(value);
+                return this;
+            }
+            if (value < 0) {
+                text.append('-');
+                value = -value;
+            }
+            long scale = 1;
+            for (int i = 0; i < decimals; i++) scale *= 10;
+            long scaled = Math.round(value * scale);
+            text.append(scaled / scale);
+            if (decimals > 0) {
+                text.append('.');
+                long fraction = scaled % scale;
+                for (long digit = scale / 10; digit > 1 && fraction < digit; digit /= 10) {
+                    text.append('0');
+                }
+                text.append(fraction);
+            }
+            return this;
+        }
+        
+        public void log() {
+            if (level == null) return;
+            enqueue(level, text);
+            level = null;
+        }
+    }
+    
+    private static void enqueue(Level level, CharSequence text) {
+        long sequence;
+        int idle = 0;
+        while (true) {
+            sequence = tail.get();
+            long slot = sequences.get((int) (sequence & MASK));
+            if (slot == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) break;
+            } else if (slot < sequence) {
+                // ring full: let the flusher catch up
+                LockSupport.unpark(flusher);
+                idle = backoff(idle);
+            }
+        }
+        int index = (int) (sequence & MASK);
+        StringBuilder slotText = texts[index];
+        slotText.setLength(0);
+        slotText.append(text);
+        levels[index] = level;
+        sequences.set(index, sequence + 1); // full fence before reading flusherWaiting
+        if (flusherWaiting) {
+            LockSupport.unpark(flusher);
+        }
+    }
+    
+    private static int backoff(int idle) {
+        if (idle < 100) {
+            Thread.onSpinWait();
+        } else if (idle < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return idle + 1;
+    }
+    
+    // Blocks until everything logged before this call has been written
+    public static void flush() {
+        long target = tail.get();
+        int idle = 0;
+        while (written < target && flusher.isAlive()) {
+            LockSupport.unpark(flusher);
+            idle = backoff(idle);
+        }
+    }
+    
+    private static void drainLoop() {
+        Batch out = new Batch(System.out);
+        Batch err = new Batch(System.err);
+        long next = 0;
+        while (true) {
+            // drain what is published (at most one ring's worth), then write it
+            long batchEnd = next + CAPACITY;
+            while (next < batchEnd) {
+                int index = (int) (next & MASK);
+                if (sequences.get(index) != next + 1) break;
+                (levels[index].compareTo(Level.WARN) >= 0 ? err : out).add(texts[index]);
+                sequences.lazySet(index, next + CAPACITY);
+                next++;
+            }
+            out.writeTo();
+            err.writeTo();
+            if (written != next) {
+                written = next;
+                continue;
+            }
+            // ring empty: wait for a producer to wake us
+            flusherWaiting = true;
+            if (sequences.get((int) (next & MASK)) != next + 1) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            flusherWaiting = false;
+        }
+    }
+    
+    // UTF-8 bytes of the lines drained for one stream since the last write
+    private static final class Batch {
+        private final PrintStream stream;
+        private final byte[] buffer = new byte[BATCH_BYTES];
+        private int length = 0;
+        
+        Batch(PrintStream stream) {
+            this.stream = stream;
+        }
+        
+        void add(CharSequence line) {
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (length + 4 > buffer.length) writeTo();
+                if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < line.length()
+                           && Character.isLowSurrogate(line.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, line.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            if (length + 1 > buffer.length) writeTo();
+            buffer[length++] = '\n';
+        }
+        
+        void writeTo() {
+            if (length == 0) return;
+            stream.write(buffer, 0, length);
+            stream.flush();
+            length = 0;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Pipeline-wide view over the per-stage metrics: throughput, the stage
+// that limits it and the critical path through the DAG.
+public class FactoryMetrics implements FactoryMetricsMBean {
+    static final String OBJECT_NAME = "RobotFactory:type=FactoryMetrics";
+    
+    private final RobotFactory.Stage[] stages;
+    private final RobotFactory.Stage sink;
+    private volatile long startNanos = System.nanoTime();
+    private volatile long startRobots = 0;
+    
+    FactoryMetrics(RobotFactory.Stage[] stages) {
+        this.stages = stages;
+        this.sink = stages[stages.length - 1];
+        this.startRobots = sink.counter.get();
+    }
+    
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(OBJECT_NAME));
+            for (RobotFactory.Stage stage : stages) {
+                server.registerMBean(stage.metrics,
+                    new ObjectName("RobotFactory:type=Stage,name=" + ObjectName.quote(stage.spec.name)));
+            }
+        } catch (JMException e) {
+            AsyncLog.warn("Could not register JMX metrics: " + e.getMessage());
+        }
+    }
+    
+    // called periodically by the sampler thread
+    void sampleQueues() {
+        for (RobotFactory.Stage stage : stages) {
+            stage.metrics.sampleQueue();
+        }
+    }
+    
+    // Stages are in topological order, so one pass finds for every stage
+    // the slowest chain of inputs feeding it (cost = mean time per part)
+    private List<RobotFactory.Stage> criticalPath() {
+        double[] cost = new double[stages.length];
+        int[] via = new int[stages.length];
+        for (RobotFactory.Stage stage : stages) {
+            via[stage.index] = -1;
+            double slowestInput = 0;
+            for (RobotFactory.Stage input : stage.inputs) {
+                if (via[stage.index] < 0 || cost[input.index] > slowestInput) {
+                    slowestInput = cost[input.index];
+                    via[stage.index] = input.index;
+                }
+            }
+            cost[stage.index] = slowestInput + stage.metrics.effectiveNanos();
+        }
+        List<RobotFactory.Stage> path = new ArrayList<>();
+        for (int i = sink.index; i >= 0; i = via[i]) {
+            path.add(stages[i]);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+    
+    // Every robot needs one part from every stage, so the stage with the
+    // longest time per part caps the throughput of the whole line
+    private RobotFactory.Stage bottleneck() {
+        RobotFactory.Stage slowest = stages[0];
+        for (RobotFactory.Stage stage : stages) {
+            if (stage.metrics.effectiveNanos() > slowest.metrics.effectiveNanos()) {
+                slowest = stage;
+            }
+        }
+        return slowest;
+    }
+    
+    @Override
+    public long getRobotsAssembled() {
+        return sink.counter.get();
+    }
+    
+    @Override
+    public double getThroughputPerSecond() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds <= 0 ? 0 : (sink.counter.get() - startRobots) / seconds;
+    }
+    
+    @Override
+    public String getBottleneck() {
+        return bottleneck().spec.name;
+    }
+    
+    @Override
+    public String getCriticalPath() {
+        List<String> names = new ArrayList<>();
+        for (RobotFactory.Stage stage : criticalPath()) {
+            names.add(stage.spec.name);
+        }
+        return String.join(" -> ", names);
+    }
+    
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Robots: %d (%.2f/s)%n", getRobotsAssembled(), getThroughputPerSecond()));
+        for (RobotFactory.Stage stage : stages) {
+            sb.append(stage.metrics.summaryLine()).append(System.lineSeparator());
+        }
+        RobotFactory.Stage bottleneck = bottleneck();
+        sb.append("Critical path: ");
+        List<RobotFactory.Stage> path = criticalPath();
+        for (int i = 0; i < path.size(); i++) {
+            if (i > 0) sb.append(" -> ");
+            sb.append(String.format("%s (%.1f ms/part)", path.get(i).spec.name, path.get(i).metrics.effectiveNanos() / 1e6));
+        }
+        sb.append(String.format("%nBottleneck: %s, capacity %.2f parts/s with %d thread(s)",
+            bottleneck.spec.name, bottleneck.metrics.getCapacityPerSecond(), bottleneck.targetThreads));
+        return sb.toString();
+    }
+    
+    @Override
+    public void reset() {
+        for (RobotFactory.Stage stage : stages) {
+            stage.metrics.reset();
+        }
+        startRobots = sink.counter.get();
+        startNanos = System.nanoTime();
+    }
+}
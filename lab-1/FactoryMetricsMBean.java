@@ -0,0 +1,12 @@
+// JMX view of the whole pipeline (see FactoryMetrics).
+// Per-stage details are exposed by one StageMetricsMBean per stage.
+public interface FactoryMetricsMBean {
+    long getRobotsAssembled();
+    double getThroughputPerSecond();
+    
+    String getBottleneck();
+    String getCriticalPath();
+    String getSummary();
+    
+    void reset();
+}
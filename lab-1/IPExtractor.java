@@ -25,12 +25,11 @@ public class IPExtractor {
                 }
             }
             
-            System.out.println("Total unique IPs found: " + ipCount.size());
-            System.out.println("Total IP occurrences: " + ipCount.values().stream().mapToInt(Integer::intValue).sum());
+            AsyncLog.info("Total unique IPs found: " + ipCount.size());
+            AsyncLog.info("Total IP occurrences: " + ipCount.values().stream().mapToInt(Integer::intValue).sum());
             
         } catch (IOException e) {
-            System.err.println("Error reading file: " + e.getMessage());
-            e.printStackTrace();
+            AsyncLog.error("Error reading file: " + e.getMessage(), e);
             return;
         }
         
@@ -46,11 +45,10 @@ public class IPExtractor {
                     }
                 });
             
-            System.out.println("Statistics written to: " + outputFile);
+            AsyncLog.info("Statistics written to: " + outputFile);
             
         } catch (IOException | UncheckedIOException e) {
-            System.err.println("Error writing file: " + e.getMessage());
-            e.printStackTrace();
+            AsyncLog.error("Error writing file: " + e.getMessage(), e);
         }
     }
 }
\ No newline at end of file
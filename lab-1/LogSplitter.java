@@ -19,7 +19,7 @@ public class LogSplitter {
                     BufferedWriter writer = writers.computeIfAbsent(keyword, k -> {
                         try {
                             String fileName = "Apache_2k-[" + k + "].log";
-                            System.out.println("Created file: " + fileName);
+                            AsyncLog.info("Created file: " + fileName);
                             return new BufferedWriter(new FileWriter(fileName), 8192);
                         } catch (IOException e) {
                             throw new UncheckedIOException(e);
@@ -31,19 +31,18 @@ public class LogSplitter {
                 }
             }
             
-            System.out.println("\nProcessing complete!");
-            System.out.println("Files created: " + writers.size());
-            writers.keySet().forEach(k -> System.out.println("  - Apache_2k-[" + k + "].log"));
+            AsyncLog.info("\nProcessing complete!");
+            AsyncLog.info("Files created: " + writers.size());
+            writers.keySet().forEach(k -> AsyncLog.info("  - Apache_2k-[" + k + "].log"));
             
         } catch (IOException | UncheckedIOException e) {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace();
+            AsyncLog.error("Error: " + e.getMessage(), e);
         } finally {
             writers.values().forEach(writer -> {
                 try {
                     writer.close();
                 } catch (IOException e) {
-                    System.err.println("Error closing file: " + e.getMessage());
+                    AsyncLog.error("Error closing file: " + e.getMessage());
                 }
             });
         }
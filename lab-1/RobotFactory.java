@@ -1,177 +1,707 @@
     import java.io.*;
-import java.util.Properties;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 public class RobotFactory {
-    // thread-safe counters
-    private static final AtomicInteger skeletonCounter = new AtomicInteger(0);
-    private static final AtomicInteger motorCounter = new AtomicInteger(0);
-    private static final AtomicInteger robotCounter = new AtomicInteger(0);
+    // GC counters at startup, so the report only covers the factory run
+    private static final long[] gcBaseline = new long[2];
+    
+    private static Stage[] stages;
+    private static FactoryMetrics metrics;
+    private static RobotJournal journal;
     
     public static void main(String[] args) {
         Config config = loadConfig("config.properties");
+        if (config.logLevel != null) {
+            AsyncLog.setLevel(config.logLevel);
+        }
+        
+        try {
+            stages = buildPipeline(config);
+        } catch (IllegalArgumentException e) {
+            AsyncLog.error("Invalid pipeline in config.properties: " + e.getMessage());
+            return;
+        }
+        if (config.pooled) {
+            AsyncLog.info("Allocation-free mode: parts are preallocated and reused");
+        }
+        
+        if (!config.journalFile.isEmpty()) {
+            openJournal(config);
+        }
+        
+        metrics = new FactoryMetrics(stages);
+        metrics.register();
+        
+        // initial split uses the configured durations as service time estimates
+        double[] estimates = new double[stages.length];
+        for (Stage stage : stages) {
+            estimates[stage.index] = stage.spec.duration;
+        }
+        assignThreads(estimates, config.threadBudget);
+        createLines(config);
+        printPipeline();
+        
+        ExecutorService executor = Executors.newCachedThreadPool();
         
-        BlockingQueue<Skeleton> skeletonQueue = new LinkedBlockingQueue<>(10);
-        BlockingQueue<Motor> motorQueue = new LinkedBlockingQueue<>(10);
+        sampleGc(gcBaseline);
         
-        ExecutorService executor = Executors.newFixedThreadPool(3);
+        // start the stage workers
+        for (Stage stage : stages) {
+            stage.adjustWorkers(executor);
+        }
         
-        // start producer and consumer threads
-        executor.submit(new SkeletonProducer(skeletonQueue, config.skeletonFrequency));
-        executor.submit(new MotorProducer(motorQueue, config.motorFrequency));
-        executor.submit(new RobotAssembler(skeletonQueue, motorQueue, config.assemblyDuration));
+        ScheduledExecutorService sampler = startSampler(config, executor);
         
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\nShutting down factory...");
+            AsyncLog.info("\nShutting down factory...");
+            sampler.shutdownNow();
             executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeJournal();
             printStatistics();
+            AsyncLog.flush();
         }));
+        
+        // sustained load test: run for a fixed time, then report
+        if (config.runDuration > 0) {
+            try {
+                Thread.sleep(config.runDuration * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.exit(0);
+        }
+    }
+    
+    // Resolves the stage specs into a DAG: inputs must name earlier stages,
+    // every stage but the last feeds exactly one consumer, the last builds robots
+    static Stage[] buildPipeline(Config config) {
+        List<StageSpec> specs = config.stages;
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("no stages defined");
+        }
+        if (specs.size() > RobotJournal.MAX_STAGES) {
+            throw new IllegalArgumentException("at most " + RobotJournal.MAX_STAGES + " stages are supported");
+        }
+        
+        Map<String, Stage> byName = new HashMap<>();
+        Stage[] result = new Stage[specs.size()];
+        for (int i = 0; i < specs.size(); i++) {
+            StageSpec spec = specs.get(i);
+            if (byName.containsKey(spec.name)) {
+                throw new IllegalArgumentException("duplicate stage '" + spec.name + "'");
+            }
+            Stage[] inputs = new Stage[spec.inputs.size()];
+            for (int j = 0; j < inputs.length; j++) {
+                Stage input = byName.get(spec.inputs.get(j));
+                if (input == null) {
+                    throw new IllegalArgumentException("stage '" + spec.name + "' uses unknown or later stage '"
+                                                       + spec.inputs.get(j) + "'");
+                }
+                if (input.consumer != null) {
+                    throw new IllegalArgumentException("stage '" + input.spec.name + "' feeds both '"
+                                                       + input.consumer.spec.name + "' and '" + spec.name + "'");
+                }
+                inputs[j] = input;
+            }
+            Stage stage = new Stage(i, spec, inputs);
+            for (Stage input : inputs) {
+                input.consumer = stage;
+            }
+            byName.put(spec.name, stage);
+            result[i] = stage;
+        }
+        
+        for (int i = 0; i < result.length - 1; i++) {
+            if (result[i].consumer == null) {
+                throw new IllegalArgumentException("stage '" + result[i].spec.name + "' is not used by any later stage");
+            }
+        }
+        return result;
+    }
+    
+    // Lines are created once thread counts are known: 1:1 lines whose
+    // thread counts cannot change later can use the lock-free ring
+    static void createLines(Config config) {
+        for (Stage stage : stages) {
+            if (stage.consumer == null) continue;
+            boolean singleThreaded = config.rebalanceInterval == 0
+                                  && stage.targetThreads == 1 && stage.consumer.targetThreads == 1;
+            int width = stages.length;
+            Supplier<Part> factory = () -> new Part(width);
+            if (!config.pooled) {
+                stage.output = new QueueLine<>(new LinkedBlockingQueue<>(config.queueCapacity), factory);
+            } else if (singleThreaded) {
+                stage.output = new RingLine<>(config.queueCapacity, factory);
+            } else {
+                stage.output = new PoolLine<>(config.queueCapacity, factory);
+            }
+        }
+    }
+    
+    // Splits the thread budget between 'auto' stages in proportion to their
+    // service time (largest remainder, at least one thread each). Stages
+    // with a fixed thread count keep it.
+    static void assignThreads(double[] serviceTimes, int budget) {
+        List<Stage> auto = new ArrayList<>();
+        int remaining = budget;
+        for (Stage stage : stages) {
+            if (stage.spec.threads > 0) {
+                stage.targetThreads = stage.spec.threads;
+                remaining -= stage.spec.threads;
+            } else {
+                auto.add(stage);
+            }
+        }
+        if (auto.isEmpty()) return;
+        
+        int extra = Math.max(0, remaining - auto.size());
+        double total = 0;
+        for (Stage stage : auto) {
+            total += Math.max(0, serviceTimes[stage.index]);
+        }
+        int[] threads = new int[auto.size()];
+        double[] remainders = new double[auto.size()];
+        int given = 0;
+        for (int i = 0; i < auto.size(); i++) {
+            double share = total > 0 ? extra * Math.max(0, serviceTimes[auto.get(i).index]) / total
+                                     : (double) extra / auto.size();
+            threads[i] = 1 + (int) share;
+            remainders[i] = share - (int) share;
+            given += (int) share;
+        }
+        for (; given < extra; given++) {
+            int best = 0;
+            for (int i = 1; i < remainders.length; i++) {
+                if (remainders[i] > remainders[best]) best = i;
+            }
+            threads[best]++;
+            remainders[best] = -1;
+        }
+        for (int i = 0; i < auto.size(); i++) {
+            auto.get(i).targetThreads = threads[i];
+        }
+    }
+    
+    private static void printPipeline() {
+        AsyncLog.info("Pipeline:");
+        for (Stage stage : stages) {
+            StringBuilder sb = new StringBuilder("  " + stage.spec.name);
+            if (stage.inputs.length > 0) {
+                sb.append(" <- ").append(String.join(" + ", stage.spec.inputs));
+            }
+            sb.append(" (").append(stage.spec.duration).append(" ms, ")
+              .append(stage.targetThreads).append(stage.targetThreads == 1 ? " thread" : " threads")
+              .append(stage.spec.threads > 0 ? ", fixed)" : ")");
+            AsyncLog.info(sb.toString());
+        }
+    }
+    
+    // samples queue depths, prints a periodic metrics summary and
+    // re-splits the thread budget from measured service times
+    private static ScheduledExecutorService startSampler(Config config, ExecutorService executor) {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(metrics::sampleQueues, 100, 100, TimeUnit.MILLISECONDS);
+        if (config.metricsInterval > 0) {
+            sampler.scheduleAtFixedRate(
+                () -> AsyncLog.info("\n=== Factory Metrics ===\n" + metrics.getSummary() + "\n"),
+                config.metricsInterval, config.metricsInterval, TimeUnit.SECONDS);
+        }
+        if (config.rebalanceInterval > 0) {
+            sampler.scheduleAtFixedRate(() -> rebalance(config.threadBudget, executor),
+                config.rebalanceInterval, config.rebalanceInterval, TimeUnit.SECONDS);
+        }
+        return sampler;
+    }
+    
+    private static void rebalance(int budget, ExecutorService executor) {
+        double[] measured = new double[stages.length];
+        for (Stage stage : stages) {
+            double mean = stage.metrics.takeWindowServiceMean();
+            if (mean <= 0) return; // not every stage has finished a part yet
+            measured[stage.index] = mean;
+        }
+        int[] before = new int[stages.length];
+        for (Stage stage : stages) {
+            before[stage.index] = stage.targetThreads;
+        }
+        assignThreads(measured, budget);
+        for (Stage stage : stages) {
+            if (stage.targetThreads != before[stage.index]) {
+                AsyncLog.info("[PIPELINE] " + stage.spec.name + ": " + before[stage.index]
+                            + " -> " + stage.targetThreads + " threads");
+                stage.adjustWorkers(executor);
+            }
+        }
+    }
+    
+    // opens the journal and continues numbering from its tail
+    private static void openJournal(Config config) {
+        try {
+            journal = new RobotJournal(config.journalFile, config.journalFsyncInterval, config.journalFsyncBatch);
+            for (Stage stage : stages) {
+                stage.counter.set(journal.lastIds[stage.index]);
+            }
+            AsyncLog.info("Journal " + config.journalFile + ": recovered " + journal.recoveredRobots
+                        + " robots (last robot #" + journal.lastIds[stages.length - 1] + ")");
+        } catch (IOException e) {
+            AsyncLog.warn("Could not open journal, running without it: " + e.getMessage());
+        }
+    }
+    
+    private static void closeJournal() {
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            AsyncLog.error("Error closing journal: " + e.getMessage());
+        }
     }
     
     private static Config loadConfig(String filename) {
         Properties props = new Properties();
         try (InputStream input = new FileInputStream(filename)) {
             props.load(input);
-            return new Config(
-                Integer.parseInt(props.getProperty("skeleton.frequency", "1000")),
-                Integer.parseInt(props.getProperty("motor.frequency", "1500")),
-                Integer.parseInt(props.getProperty("assembly.duration", "2000"))
-            );
         } catch (IOException e) {
-            System.out.println("Config file not found, using defaults");
-            return new Config(1000, 1500, 2000);
+            AsyncLog.info("Config file not found, using defaults");
         }
+        return new Config(props);
     }
     
     private static void printStatistics() {
-        System.out.println("\n=== Factory Statistics ===");
-        System.out.println("Skeletons produced: " + skeletonCounter.get());
-        System.out.println("Motors produced: " + motorCounter.get());
-        System.out.println("Robots assembled: " + robotCounter.get());
+        AsyncLog.info("\n=== Factory Statistics ===");
+        for (Stage stage : stages) {
+            AsyncLog.info(stage.consumer == null
+                ? "Robots assembled: " + stage.counter.get()
+                : stage.spec.name + " produced: " + stage.counter.get());
+        }
+        AsyncLog.info("\n=== Latency & Utilization ===");
+        AsyncLog.info(metrics.getSummary());
+        if (journal != null) {
+            AsyncLog.info(journal.stats());
+        }
+        printGcActivity();
     }
     
-    static class Config {
-        final int skeletonFrequency;
-        final int motorFrequency;
-        final int assemblyDuration;
-        
-        Config(int skeletonFreq, int motorFreq, int assemblyDur) {
-            this.skeletonFrequency = skeletonFreq;
-            this.motorFrequency = motorFreq;
-            this.assemblyDuration = assemblyDur;
+    private static void sampleGc(long[] totals) {
+        totals[0] = 0;
+        totals[1] = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
         }
     }
     
-    static class Skeleton {
-        final int id;
-        Skeleton(int id) { this.id = id; }
+    private static void printGcActivity() {
+        AsyncLog.info("\n=== GC Activity ===");
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        for (GarbageCollectorMXBean gc : collectors) {
+            AsyncLog.info(gc.getName() + ": " + gc.getCollectionCount() + " collections, "
+                        + gc.getCollectionTime() + " ms");
+        }
+        long[] now = new long[2];
+        sampleGc(now);
+        AsyncLog.info("Collections during run: " + (now[0] - gcBaseline[0])
+                    + " (" + (now[1] - gcBaseline[1]) + " ms)");
+        Runtime rt = Runtime.getRuntime();
+        AsyncLog.info("Heap used: " + (rt.totalMemory() - rt.freeMemory()) / 1024 + " KB");
     }
     
-    static class Motor {
-        final int id;
-        Motor(int id) { this.id = id; }
+    static class Config {
+        final List<StageSpec> stages;
+        final int queueCapacity;
+        final boolean pooled;
+        final int runDuration;
+        final int metricsInterval;
+        final int threadBudget;
+        final int rebalanceInterval;
+        final String journalFile;
+        final int journalFsyncInterval;
+        final AsyncLog.Level logLevel; // null = keep -Dlog.level or the default
+        final int journalFsyncBatch;
+        
+        // missing keys fall back to the defaults below
+        Config(Properties props) {
+            this.stages = parseStages(props);
+            this.queueCapacity = Integer.parseInt(props.getProperty("queue.capacity", "10"));
+            this.pooled = Boolean.parseBoolean(props.getProperty("pool.enabled", "false"));
+            this.runDuration = Integer.parseInt(props.getProperty("run.duration", "0"));
+            this.metricsInterval = Integer.parseInt(props.getProperty("metrics.interval", "10"));
+            this.threadBudget = Integer.parseInt(props.getProperty("pipeline.threads", String.valueOf(stages.size())));
+            this.rebalanceInterval = Integer.parseInt(props.getProperty("pipeline.rebalance.interval", "0"));
+            this.journalFile = props.getProperty("journal.file", "").trim();
+            this.journalFsyncInterval = Integer.parseInt(props.getProperty("journal.fsync.interval", "50"));
+            this.journalFsyncBatch = Integer.parseInt(props.getProperty("journal.fsync.batch", "256"));
+            this.logLevel = AsyncLog.parseLevel(props.getProperty("log.level"), null);
+        }
+        
+        // Without pipeline.stages the classic skeleton + motor -> robot line
+        // is built from the original frequency/duration keys
+        private static List<StageSpec> parseStages(Properties props) {
+            List<StageSpec> specs = new ArrayList<>();
+            String names = props.getProperty("pipeline.stages");
+            if (names == null || names.isBlank()) {
+                specs.add(new StageSpec("skeleton", List.of(),
+                    Integer.parseInt(props.getProperty("skeleton.frequency", "1000")), 1));
+                specs.add(new StageSpec("motor", List.of(),
+                    Integer.parseInt(props.getProperty("motor.frequency", "1500")), 1));
+                specs.add(new StageSpec("robot", List.of("skeleton", "motor"),
+                    Integer.parseInt(props.getProperty("assembly.duration", "2000")), 1));
+                return specs;
+            }
+            for (String name : names.split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) continue;
+                String inputs = props.getProperty("stage." + name + ".inputs", "").trim();
+                String threads = props.getProperty("stage." + name + ".threads", "auto").trim();
+                specs.add(new StageSpec(name,
+                    inputs.isEmpty() ? List.of() : Arrays.asList(inputs.split("\\s*,\\s*")),
+                    Integer.parseInt(props.getProperty("stage." + name + ".duration", "1000")),
+                    threads.equalsIgnoreCase("auto") ? 0 : Integer.parseInt(threads)));
+            }
+            return specs;
+        }
     }
     
-    static class Robot {
-        final int id;
-        final Skeleton skeleton;
-        final Motor motor;
+    static class StageSpec {
+        final String name;
+        final List<String> inputs; // empty for raw part producers
+        final int duration;        // production or assembly time in ms
+        final int threads;         // 0 = auto
         
-        Robot(int id, Skeleton skeleton, Motor motor) {
-            this.id = id;
-            this.skeleton = skeleton;
-            this.motor = motor;
+        StageSpec(String name, List<String> inputs, int duration, int threads) {
+            this.name = name;
+            this.inputs = inputs;
+            this.duration = duration;
+            this.threads = threads;
         }
     }
     
-    // Producer thread for skeletons
-    static class SkeletonProducer implements Runnable {
-        private final BlockingQueue<Skeleton> queue;
-        private final int frequency;
+    // A raw part, sub-assembly or robot. The lineage holds, per stage index,
+    // the id of the part from that stage that went into this one. Fields are
+    // mutable so pooled parts can be refilled in place.
+    static class Part {
+        int id;
+        long producedAt; // System.nanoTime() when published to the line
+        final int[] lineage;
         
-        SkeletonProducer(BlockingQueue<Skeleton> queue, int frequency) {
-            this.queue = queue;
-            this.frequency = frequency;
+        Part(int stageCount) {
+            this.lineage = new int[stageCount];
         }
+    }
+    
+    // One node of the pipeline and the pool of workers running it
+    static class Stage {
+        final int index;
+        final StageSpec spec;
+        final Stage[] inputs;
+        final AtomicInteger counter = new AtomicInteger(0);
+        final StageMetrics metrics;
+        final String tag;   // e.g. "[SKELETON]"
+        Stage consumer;     // null for the final stage
+        PartLine<Part> output;
         
-        @Override
-        public void run() {
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    int id = skeletonCounter.incrementAndGet();
-                    Skeleton skeleton = new Skeleton(id);
-                    queue.put(skeleton);
-                    System.out.println("[SKELETON] Produced skeleton #" + id);
-                    Thread.sleep(frequency);
+        volatile int targetThreads = 1;
+        private final boolean[] activeSlots = new boolean[256];
+        
+        Stage(int index, StageSpec spec, Stage[] inputs) {
+            this.index = index;
+            this.spec = spec;
+            this.inputs = inputs;
+            this.metrics = new StageMetrics(this);
+            this.tag = "[" + spec.name.toUpperCase() + "]";
+        }
+        
+        // starts workers for free slots below the target; extra workers
+        // notice the lower target and retire after their current part
+        synchronized void adjustWorkers(ExecutorService executor) {
+            int target = Math.min(targetThreads, activeSlots.length);
+            for (int slot = 0; slot < target; slot++) {
+                if (!activeSlots[slot]) {
+                    try {
+                        executor.submit(new StageWorker(this, slot));
+                        activeSlots[slot] = true;
+                    } catch (RejectedExecutionException e) {
+                        return; // shutting down
+                    }
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
         }
+        
+        boolean keepRunning(int slot) {
+            if (slot < targetThreads) return true;
+            synchronized (this) {
+                if (slot < targetThreads) return true;
+                activeSlots[slot] = false;
+                return false;
+            }
+        }
+        
+        synchronized void retire(int slot) {
+            activeSlots[slot] = false;
+        }
+    }
+    
+    // Line between a stage and its consumer. A part is claimed and filled by
+    // the producing stage, published, taken by the consuming stage and
+    // released once it has been assembled into the next part.
+    interface PartLine<T> {
+        T claim() throws InterruptedException;
+        void publish(T part) throws InterruptedException;
+        T take() throws InterruptedException;
+        void release(T part);
+        int size(); // parts in use on the line
     }
     
-    // Producer thread for motors
-    static class MotorProducer implements Runnable {
-        private final BlockingQueue<Motor> queue;
-        private final int frequency;
+    // Classic mode: a fresh part per cycle, handed over through a queue
+    static class QueueLine<T> implements PartLine<T> {
+        private final BlockingQueue<T> queue;
+        private final Supplier<T> factory;
         
-        MotorProducer(BlockingQueue<Motor> queue, int frequency) {
+        QueueLine(BlockingQueue<T> queue, Supplier<T> factory) {
             this.queue = queue;
-            this.frequency = frequency;
+            this.factory = factory;
         }
         
         @Override
-        public void run() {
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    int id = motorCounter.incrementAndGet();
-                    Motor motor = new Motor(id);
-                    queue.put(motor);
-                    System.out.println("[MOTOR] Produced motor #" + id);
-                    Thread.sleep(frequency);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        public T claim() { return factory.get(); }
+        
+        @Override
+        public void publish(T part) throws InterruptedException { queue.put(part); }
+        
+        @Override
+        public T take() throws InterruptedException { return queue.take(); }
+        
+        @Override
+        public void release(T part) { /* left to the GC */ }
+        
+        @Override
+        public int size() { return queue.size(); }
+    }
+    
+    // Allocation-free mode for 1:1 lines: single-producer/single-consumer
+    // ring whose slots hold preallocated parts. A slot only becomes free again
+    // when the consumer releases it, so a part is never used twice at once.
+    static class RingLine<T> implements PartLine<T> {
+        private static final int SPIN_LIMIT = 100;
+        private static final long PARK_NANOS = 50_000;
+        
+        private final Object[] slots;
+        private final int mask;
+        private final AtomicLong published = new AtomicLong(0); // next slot the producer fills
+        private final AtomicLong released = new AtomicLong(0);  // next slot the consumer frees
+        private long taken = 0; // consumer only
+        
+        RingLine(int capacity, Supplier<T> factory) {
+            int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.slots = new Object[size];
+            this.mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                slots[i] = factory.get();
+            }
+        }
+        
+        @SuppressWarnings("unchecked")
+        private T slot(long sequence) {
+            return (T) slots[(int) (sequence & mask)];
+        }
+        
+        @Override
+        public T claim() throws InterruptedException {
+            long sequence = published.get();
+            int spins = 0;
+            while (sequence - released.get() >= slots.length) { // ring full
+                spins = idle(spins);
             }
+            return slot(sequence);
+        }
+        
+        @Override
+        public void publish(T part) {
+            published.setRelease(published.get() + 1);
         }
+        
+        @Override
+        public T take() throws InterruptedException {
+            int spins = 0;
+            while (published.get() <= taken) { // ring empty
+                spins = idle(spins);
+            }
+            return slot(taken++);
+        }
+        
+        @Override
+        public void release(T part) {
+            released.setRelease(released.get() + 1);
+        }
+        
+        @Override
+        public int size() {
+            return (int) (published.get() - released.get());
+        }
+        
+        private static int idle(int spins) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (spins < SPIN_LIMIT) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            return spins + 1;
+        }
+    }
+    
+    // Allocation-free mode for lines with several producer or consumer
+    // threads: preallocated parts circulate between a free list and the line
+    static class PoolLine<T> implements PartLine<T> {
+        private final BlockingQueue<T> free;
+        private final BlockingQueue<T> line;
+        private final int capacity;
+        
+        PoolLine(int capacity, Supplier<T> factory) {
+            this.capacity = capacity;
+            this.free = new ArrayBlockingQueue<>(capacity);
+            this.line = new ArrayBlockingQueue<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                free.add(factory.get());
+            }
+        }
+        
+        @Override
+        public T claim() throws InterruptedException { return free.take(); }
+        
+        @Override
+        public void publish(T part) throws InterruptedException { line.put(part); }
+        
+        @Override
+        public T take() throws InterruptedException { return line.take(); }
+        
+        @Override
+        public void release(T part) { free.offer(part); }
+        
+        @Override
+        public int size() { return capacity - free.size(); }
     }
     
-    // Consumer thread that assembles robots
-    static class RobotAssembler implements Runnable {
-        private final BlockingQueue<Skeleton> skeletonQueue;
-        private final BlockingQueue<Motor> motorQueue;
-        private final int assemblyDuration;
+    // Worker of one stage: takes one part from each input (fan-in join),
+    // works for the stage duration, then publishes the new part or, in the
+    // final stage, logs and journals the robot
+    static class StageWorker implements Runnable {
+        private final Stage stage;
+        private final int slot;
+        private final Part[] taken;
+        private final Part robot; // final stage only, reused for every robot
         
-        RobotAssembler(BlockingQueue<Skeleton> skeletonQueue, 
-                       BlockingQueue<Motor> motorQueue, 
-                       int assemblyDuration) {
-            this.skeletonQueue = skeletonQueue;
-            this.motorQueue = motorQueue;
-            this.assemblyDuration = assemblyDuration;
+        StageWorker(Stage stage, int slot) {
+            this.stage = stage;
+            this.slot = slot;
+            this.taken = new Part[stage.inputs.length];
+            this.robot = stage.consumer == null ? new Part(stages.length) : null;
         }
         
         @Override
         public void run() {
             try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    // take components from queues (blocks if empty)
-                    Skeleton skeleton = skeletonQueue.take();
-                    Motor motor = motorQueue.take();
-                    
-                    Thread.sleep(assemblyDuration); // simulate assembly time
-                    
-                    // create robot
-                    int id = robotCounter.incrementAndGet();
-                    Robot robot = new Robot(id, skeleton, motor);
-                    
-                    System.out.println("*** [ROBOT] Assembled robot #" + id + 
-                                     " (skeleton #" + skeleton.id + 
-                                     ", motor #" + motor.id + ") ***");
+                while (!Thread.currentThread().isInterrupted() && stage.keepRunning(slot)) {
+                    cycle();
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                AsyncLog.error(stage.tag + " Journal write failed, stage stopped: " + e.getMessage());
+            } finally {
+                stage.retire(slot);
+            }
+        }
+        
+        private void cycle() throws InterruptedException, IOException {
+            // take one part from every input line (blocks if empty)
+            long waitStart = System.nanoTime();
+            for (int i = 0; i < taken.length; i++) {
+                taken[i] = stage.inputs[i].output.take();
+                stage.inputs[i].metrics.queueWait.record(System.nanoTime() - taken[i].producedAt);
+            }
+            long workStart = System.nanoTime();
+            stage.metrics.blocked(workStart - waitStart);
+            
+            if (stage.spec.duration > 0) Thread.sleep(stage.spec.duration); // simulate the work
+            
+            int id = stage.counter.incrementAndGet();
+            long worked = System.nanoTime() - workStart;
+            
+            Part part;
+            if (robot != null) {
+                part = robot;
+            } else {
+                long claimStart = System.nanoTime();
+                part = stage.output.claim();
+                stage.metrics.blocked(System.nanoTime() - claimStart);
+            }
+            part.id = id;
+            Arrays.fill(part.lineage, 0);
+            for (Part input : taken) {
+                for (int j = 0; j < part.lineage.length; j++) {
+                    if (input.lineage[j] != 0) part.lineage[j] = input.lineage[j];
+                }
+            }
+            part.lineage[stage.index] = id;
+            
+            // per-part lines are DEBUG so they can be filtered out under load
+            AsyncLog.Message log = AsyncLog.debug();
+            if (robot != null) {
+                if (journal != null) {
+                    journal.append(part.lineage);
+                }
+                log.append("*** ").append(stage.tag).append(" Assembled ").append(stage.spec.name)
+                   .append(" #").append(id);
+                appendInputs(log, part);
+                log.append(" ***").log();
+            } else {
+                if (stage.inputs.length == 0) {
+                    log.append(stage.tag).append(" Produced ").append(stage.spec.name).append(" #").append(id);
+                } else {
+                    log.append(stage.tag).append(" Assembled ").append(stage.spec.name).append(" #").append(id);
+                    appendInputs(log, part);
+                }
+                part.producedAt = System.nanoTime();
+                long publishStart = part.producedAt;
+                stage.output.publish(part);
+                stage.metrics.blocked(System.nanoTime() - publishStart);
+                log.log();
+            }
+            
+            // the inputs are now part of the new part, their slots can be reused
+            for (int i = 0; i < taken.length; i++) {
+                stage.inputs[i].output.release(taken[i]);
+                taken[i] = null;
+            }
+            stage.metrics.recordService(worked);
+        }
+        
+        private void appendInputs(AsyncLog.Message log, Part part) {
+            log.append(" (");
+            for (int i = 0; i < stage.inputs.length; i++) {
+                if (i > 0) log.append(", ");
+                log.append(stage.inputs[i].spec.name).append(" #").append(part.lineage[stage.inputs[i].index]);
             }
+            log.append(")");
         }
     }
 }
\ No newline at end of file
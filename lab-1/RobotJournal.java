@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Append-only, memory-mapped journal of assembled robots.
+// Records are fixed-size and checksummed:
+//   magic(4) partIds(4 x MAX_STAGES) timestamp(8) crc32(4)
+// partIds holds, per pipeline stage, the id of the part used in the robot;
+// the last stage's slot is the robot id itself.
+// Appends only write into the mapping. A background flusher forces the
+// mapping to disk every fsyncInterval ms, or as soon as fsyncBatch records
+// are pending, so one fsync covers a whole group of robots.
+// A journal in the older "ROBO" format (robotId, skeletonId, motorId per
+// 32-byte record) is converted on open; any other content is refused
+// rather than overwritten.
+class RobotJournal implements AutoCloseable {
+    static final int MAX_STAGES = 12;
+    static final int RECORD_SIZE = 64;
+    private static final int MAGIC = 0x524F4232; // "ROB2"
+    private static final int TIMESTAMP = 4 + 4 * MAX_STAGES;
+    private static final int CRC = TIMESTAMP + 8;
+    private static final int RECORDS_PER_MAP = 16 * 1024; // 1 MiB per mapping
+    private static final int RECOVERY_WINDOW = 64; // records scanned for the highest ids
+    private static final int LEGACY_MAGIC = 0x524F424F; // "ROBO"
+    private static final int LEGACY_RECORD_SIZE = 32;
+    private static final int LEGACY_CRC = 24;
+    
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private final int fsyncBatch;
+    private final long fsyncIntervalNanos;
+    private final Thread flusher;
+    
+    private volatile MappedByteBuffer mapping;
+    private long mappingStart;      // first record index covered by the mapping
+    private long nextRecord;        // index of the next record to write
+    private volatile boolean closed = false;
+    
+    private final AtomicLong appended = new AtomicLong(0);
+    private final AtomicLong durable = new AtomicLong(0);
+    private final AtomicLong fsyncs = new AtomicLong(0);
+    private final AtomicLong fsyncNanos = new AtomicLong(0);
+    
+    // state found at the journal tail when it was opened
+    final int recoveredRobots;
+    final int[] lastIds = new int[MAX_STAGES]; // highest id per stage
+    
+    RobotJournal(String file, int fsyncIntervalMs, int fsyncBatch) throws IOException {
+        Path path = Paths.get(file);
+        if (firstMagic(path) == LEGACY_MAGIC) {
+            migrateLegacy(path);
+        }
+        int magic = firstMagic(path);
+        if (magic != 0 && magic != MAGIC) {
+            throw new IOException(file + " is not a robot journal, refusing to overwrite it");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.fsyncBatch = Math.max(1, fsyncBatch);
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMs));
+        
+        // recover: find the tail, then read the last intact record
+        long count = findTail();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        while (count > 0 && !readRecord(count - 1, record)) {
+            count--; // torn write at the tail
+        }
+        this.nextRecord = count;
+        this.recoveredRobots = (int) count;
+        
+        // with several threads per stage ids can finish slightly out of
+        // order, so take the highest id per stage over the last records
+        for (long i = count - 1; i >= 0 && i >= count - RECOVERY_WINDOW; i--) {
+            if (!readRecord(i, record)) continue;
+            for (int s = 0; s < MAX_STAGES; s++) {
+                lastIds[s] = Math.max(lastIds[s], record.getInt(4 + 4 * s));
+            }
+        }
+        
+        map(count);
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+    
+    // magic of the first record, 0 for a missing or empty file
+    private static int firstMagic(Path path) throws IOException {
+        if (!Files.exists(path)) return 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && in.read(magic) > 0) {
+                // short reads
+            }
+            return magic.hasRemaining() ? 0 : magic.getInt(0);
+        }
+    }
+    
+    // Rewrites the intact records of an old journal in the current format,
+    // skeleton, motor and robot ids going to stages 0, 1 and 2 as in the
+    // classic line. The old file is kept next to it as <file>.rob1.
+    private static void migrateLegacy(Path path) throws IOException {
+        Path converted = Paths.get(path + ".migrating");
+        CRC32 crc = new CRC32();
+        long count = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(converted, StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer old = ByteBuffer.allocate(LEGACY_RECORD_SIZE);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            while (true) {
+                old.clear();
+                while (old.hasRemaining() && in.read(old, count * LEGACY_RECORD_SIZE + old.position()) > 0) {
+                    // short reads
+                }
+                if (old.hasRemaining() || old.getInt(0) != LEGACY_MAGIC
+                    || old.getInt(LEGACY_CRC) != checksum(crc, old, 0, LEGACY_CRC)) {
+                    break; // zero-filled or torn tail
+                }
+                record.clear();
+                record.putInt(4, old.getInt(8));   // skeleton
+                record.putInt(8, old.getInt(12));  // motor
+                record.putInt(12, old.getInt(4));  // robot
+                record.putLong(TIMESTAMP, old.getLong(16));
+                record.putInt(0, MAGIC);
+                record.putInt(CRC, checksum(crc, record, 0, CRC));
+                while (record.hasRemaining()) {
+                    out.write(record, count * RECORD_SIZE + record.position());
+                }
+                count++;
+            }
+            out.force(true);
+        }
+        Files.move(path, Paths.get(path + ".rob1"), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(converted, path, StandardCopyOption.ATOMIC_MOVE);
+        AsyncLog.info("Journal " + path + ": converted " + count + " records from the old format (kept as "
+                    + path + ".rob1)");
+    }
+    
+    // Records are written contiguously and the file is zero-filled beyond
+    // them, so the tail can be found with a binary search on the magic.
+    private long findTail() throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        long lo = 0;
+        long hi = channel.size() / RECORD_SIZE;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            magic.clear();
+            channel.read(magic, mid * RECORD_SIZE);
+            if (magic.position() == 4 && magic.getInt(0) == MAGIC) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    private boolean readRecord(long index, ByteBuffer record) throws IOException {
+        record.clear();
+        while (record.hasRemaining()) {
+            if (channel.read(record, index * RECORD_SIZE + record.position()) < 0) {
+                return false;
+            }
+        }
+        return record.getInt(0) == MAGIC && record.getInt(CRC) == checksum(record, 0);
+    }
+    
+    private int checksum(ByteBuffer buffer, int offset) {
+        return checksum(crc, buffer, offset, CRC);
+    }
+    
+    private static int checksum(CRC32 crc, ByteBuffer buffer, int offset, int length) {
+        crc.reset();
+        for (int i = 0; i < length; i++) {
+            crc.update(buffer.get(offset + i));
+        }
+        return (int) crc.getValue();
+    }
+    
+    private void map(long firstRecord) throws IOException {
+        mappingStart = firstRecord;
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE,
+                              firstRecord * RECORD_SIZE, (long) RECORDS_PER_MAP * RECORD_SIZE);
+    }
+    
+    // Writes a record into the mapping; durability follows with the next group fsync
+    synchronized void append(int[] partIds) throws IOException {
+        if (nextRecord - mappingStart == RECORDS_PER_MAP) {
+            mapping.force(); // rare: roll over to a fresh mapping
+            map(nextRecord);
+        }
+        int offset = (int) (nextRecord - mappingStart) * RECORD_SIZE;
+        MappedByteBuffer buffer = mapping;
+        for (int s = 0; s < MAX_STAGES; s++) {
+            buffer.putInt(offset + 4 + 4 * s, s < partIds.length ? partIds[s] : 0);
+        }
+        buffer.putLong(offset + TIMESTAMP, System.currentTimeMillis());
+        buffer.putInt(offset, MAGIC);
+        buffer.putInt(offset + CRC, checksum(buffer, offset));
+        nextRecord++;
+        
+        if (appended.incrementAndGet() - durable.get() >= fsyncBatch) {
+            LockSupport.unpark(flusher);
+        }
+    }
+    
+    private void flushLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, fsyncIntervalNanos);
+            flush();
+        }
+    }
+    
+    // The target and the mapping are taken together: every record counted
+    // in target is either in that mapping or in one already forced when
+    // append rolled over. The fsync itself runs without the lock.
+    private void flush() {
+        long target;
+        MappedByteBuffer current;
+        synchronized (this) {
+            target = appended.get();
+            current = mapping;
+        }
+        if (target == durable.get()) return;
+        long start = System.nanoTime();
+        current.force();
+        fsyncNanos.addAndGet(System.nanoTime() - start);
+        fsyncs.incrementAndGet();
+        durable.set(target);
+    }
+    
+    String stats() {
+        long n = fsyncs.get();
+        return String.format("Journal: %d appended, %d durable, %d fsyncs (%.1f robots/fsync, avg %.1f us/fsync)",
+            appended.get(), durable.get(), n,
+            n == 0 ? 0.0 : (double) durable.get() / n,
+            n == 0 ? 0.0 : fsyncNanos.get() / 1000.0 / n);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(); // its last force must not hit a closed channel
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        channel.close();
+    }
+}
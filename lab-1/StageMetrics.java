@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Service time, output queue wait and depth, and busy/blocked time of one
+// pipeline stage. Hot-path recording is lock-free and allocation-free.
+public class StageMetrics implements StageMetricsMBean {
+    final LatencyHistogram service = new LatencyHistogram();
+    final LatencyHistogram queueWait = new LatencyHistogram(); // time parts sat in the output line
+    private final LatencyHistogram depth = new LatencyHistogram();
+    private final RobotFactory.Stage stage;
+    
+    // busy = producing or assembling, blocked = waiting on a full or empty line
+    private final AtomicLong busyNanos = new AtomicLong(0);
+    private final AtomicLong blockedNanos = new AtomicLong(0);
+    
+    // service time since the last rebalance
+    private final AtomicLong windowNanos = new AtomicLong(0);
+    private final AtomicLong windowCount = new AtomicLong(0);
+    
+    private volatile long startNanos = System.nanoTime();
+    
+    StageMetrics(RobotFactory.Stage stage) {
+        this.stage = stage;
+    }
+    
+    void recordService(long nanos) {
+        service.record(nanos);
+        busyNanos.addAndGet(nanos);
+        windowNanos.addAndGet(nanos);
+        windowCount.incrementAndGet();
+    }
+    
+    void blocked(long nanos) {
+        blockedNanos.addAndGet(nanos);
+    }
+    
+    void sampleQueue() {
+        if (stage.output != null) {
+            depth.record(stage.output.size());
+        }
+    }
+    
+    // mean service time in ns since the previous call, 0 if nothing was produced
+    double takeWindowServiceMean() {
+        long count = windowCount.getAndSet(0);
+        long nanos = windowNanos.getAndSet(0);
+        return count == 0 ? 0 : (double) nanos / count;
+    }
+    
+    // mean wall time per part at this stage, given its thread count
+    double effectiveNanos() {
+        return service.mean() / Math.max(1, stage.targetThreads);
+    }
+    
+    private double percentOfWall(long nanos) {
+        long wall = (System.nanoTime() - startNanos) * Math.max(1, stage.targetThreads);
+        return wall <= 0 ? 0 : 100.0 * nanos / wall;
+    }
+    
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+    
+    @Override public String getName() { return stage.spec.name; }
+    @Override public String getInputs() { return String.join(",", stage.spec.inputs); }
+    @Override public int getThreads() { return stage.targetThreads; }
+    @Override public long getPartsProduced() { return stage.counter.get(); }
+    
+    @Override public double getServiceMeanMicros() { return service.mean() / 1000.0; }
+    @Override public double getServiceP50Micros() { return micros(service.percentile(50)); }
+    @Override public double getServiceP99Micros() { return micros(service.percentile(99)); }
+    @Override public double getServiceMaxMicros() { return micros(service.max()); }
+    
+    @Override public double getQueueWaitP50Micros() { return micros(queueWait.percentile(50)); }
+    @Override public double getQueueWaitP99Micros() { return micros(queueWait.percentile(99)); }
+    @Override public double getQueueWaitMaxMicros() { return micros(queueWait.max()); }
+    
+    @Override public int getQueueDepth() { return stage.output == null ? 0 : stage.output.size(); }
+    @Override public double getQueueDepthMean() { return depth.mean(); }
+    
+    @Override public double getUtilization() { return percentOfWall(busyNanos.get()); }
+    @Override public double getBlockedPercent() { return percentOfWall(blockedNanos.get()); }
+    
+    @Override
+    public double getCapacityPerSecond() {
+        double nanos = effectiveNanos();
+        return nanos <= 0 ? 0 : 1e9 / nanos;
+    }
+    
+    String summaryLine() {
+        return String.format("%-12s %2d thr  service p50 %9.1f us  p99 %9.1f us  | wait p99 %9.1f us  depth %2d (avg %4.1f) | busy %5.1f%%  blocked %5.1f%%",
+            stage.spec.name, stage.targetThreads, getServiceP50Micros(), getServiceP99Micros(),
+            getQueueWaitP99Micros(), getQueueDepth(), getQueueDepthMean(),
+            getUtilization(), getBlockedPercent());
+    }
+    
+    void reset() {
+        service.reset();
+        queueWait.reset();
+        depth.reset();
+        busyNanos.set(0);
+        blockedNanos.set(0);
+        windowNanos.set(0);
+        windowCount.set(0);
+        startNanos = System.nanoTime();
+    }
+}
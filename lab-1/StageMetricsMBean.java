@@ -0,0 +1,24 @@
+// JMX view of one pipeline stage (see StageMetrics).
+// Latencies are in microseconds, utilizations in percent of wall time.
+public interface StageMetricsMBean {
+    String getName();
+    String getInputs();
+    int getThreads();
+    long getPartsProduced();
+    
+    double getServiceMeanMicros();
+    double getServiceP50Micros();
+    double getServiceP99Micros();
+    double getServiceMaxMicros();
+    
+    double getQueueWaitP50Micros();
+    double getQueueWaitP99Micros();
+    double getQueueWaitMaxMicros();
+    
+    int getQueueDepth();
+    double getQueueDepthMean();
+    
+    double getUtilization();
+    double getBlockedPercent();
+    double getCapacityPerSecond();
+}
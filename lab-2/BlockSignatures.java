@@ -0,0 +1,476 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// rsync-style delta transfer for 'sync'. The server splits its copy of a
+// file into blocks and sends a weak rolling checksum and an MD5 hash per
+// block (the signatures). The client slides a window over its own copy a
+// byte at a time; where the rolling checksum and then the hash match a
+// block it sends a reference to that block, everything else is sent as
+// literal data. The server rebuilds the file from its old blocks and the
+// literals and checks the result against a SHA-256 of the client's file.
+//
+// Signatures are computed on a ForkJoinPool, one task per few MiB of the
+// file, and cached per path by size and modification time.
+//
+// signatures: int block size, long file size, int blocks,
+//             then per block: int weak checksum, 16-byte MD5
+// delta:      int block size, long old size, then operations:
+//             'C' int first block, int blocks   copy old blocks
+//             'D' int length, bytes              literal data
+//             'E' long new size, 32-byte SHA-256 end of the delta
+public class BlockSignatures {
+    private static final int MIN_BLOCK = 2048;
+    private static final int MAX_BLOCK = 128 * 1024;
+    private static final int MAX_BLOCKS = 4 * 1024 * 1024;
+    private static final int STRONG_LENGTH = 16;
+    private static final int ENTRY = 4 + STRONG_LENGTH;
+    private static final int HEADER = 16;
+    private static final long TASK_BYTES = 4L * 1024 * 1024; // file bytes signed per task
+    private static final int READ_SIZE = 1024 * 1024;
+    private static final int LITERAL_LIMIT = 64 * 1024; // largest 'D' operation
+    private static final long RACY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final byte[] signatures;
+
+        Entry(long size, long modified, byte[] signatures) {
+            this.size = size;
+            this.modified = modified;
+            this.signatures = signatures;
+        }
+    }
+
+    // Sizes of a delta, or of a rebuilt file: bytes taken from the old file
+    // and bytes sent as literals
+    public static final class Delta {
+        public final Path file;
+        public final long size;
+        public final long reused;
+        public final long literal;
+
+        Delta(Path file, long size, long reused, long literal) {
+            this.file = file;
+            this.size = size;
+            this.reused = reused;
+            this.literal = literal;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Map<Path, Entry> cache;
+
+    public BlockSignatures(int maxEntries, int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // about sqrt(size), as a power of two
+    static int blockSize(long size) {
+        int block = Integer.highestOneBit((int) Math.min(Math.sqrt(size), MAX_BLOCK));
+        return Math.max(MIN_BLOCK, block);
+    }
+
+    // Signatures of an existing file, from the cache while its size and
+    // mtime are unchanged. Files modified within RACY_NANOS are not cached,
+    // a second write in the same clock tick would go unnoticed.
+    public byte[] signatures(Path file) throws IOException {
+        BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = before.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        synchronized (this) {
+            Entry entry = cache.get(file);
+            if (entry != null && entry.size == before.size() && entry.modified == modified) {
+                return entry.signatures;
+            }
+        }
+        byte[] signatures = compute(file);
+        BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+        boolean unchanged = after.size() == before.size()
+                && after.lastModifiedTime().to(TimeUnit.NANOSECONDS) == modified;
+        long now = System.currentTimeMillis() * 1_000_000L;
+        if (unchanged && now - modified > RACY_NANOS) {
+            synchronized (this) {
+                cache.put(file, new Entry(before.size(), modified, signatures));
+            }
+        }
+        return signatures;
+    }
+
+    // signatures of a file the server does not have yet
+    public static byte[] none() {
+        return ByteBuffer.allocate(HEADER).putInt(MIN_BLOCK).putLong(0).putInt(0).array();
+    }
+
+    private byte[] compute(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int block = blockSize(size);
+            long count = (size + block - 1) / block;
+            if (count > MAX_BLOCKS) {
+                throw new IOException("File is too large to sync (" + size + " bytes).");
+            }
+            int blocks = (int) count;
+            byte[] signatures = new byte[HEADER + blocks * ENTRY];
+            ByteBuffer.wrap(signatures).putInt(block).putLong(size).putInt(blocks);
+
+            int perTask = (int) Math.max(1, TASK_BYTES / block);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int first = 0; first < blocks; first += perTask) {
+                int from = first;
+                int to = Math.min(blocks, first + perTask);
+                tasks.add(() -> {
+                    sign(channel, size, block, from, to, signatures);
+                    return null;
+                });
+            }
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+            return signatures;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing signatures.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private static void sign(FileChannel channel, long size, int block, int from, int to, byte[] signatures)
+            throws IOException {
+        MessageDigest md5 = digest("MD5");
+        byte[] data = new byte[block];
+        ByteBuffer out = ByteBuffer.wrap(signatures);
+        for (int i = from; i < to; i++) {
+            long position = (long) i * block;
+            int length = (int) Math.min(block, size - position);
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("File shrank while its signatures were computed.");
+                }
+            }
+            int offset = HEADER + i * ENTRY;
+            out.putInt(offset, weak(data, 0, length));
+            md5.update(data, 0, length);
+            try {
+                md5.digest(signatures, offset + 4, STRONG_LENGTH);
+            } catch (DigestException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // rsync's checksum: a = sum of bytes, b = sum of the running sums a,
+    // both mod 2^16, so it can be rolled forward a byte at a time
+    static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Client side: compares the local file with the server's signatures
+    // and writes the delta to a temporary file
+    public static Delta delta(Path local, byte[] signatures) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(signatures);
+        int block = header.getInt();
+        long oldSize = header.getLong();
+        int blocks = header.getInt();
+        if (block < MIN_BLOCK || block > MAX_BLOCK || blocks < 0 || signatures.length != HEADER + (long) blocks * ENTRY) {
+            throw new IOException("Invalid signatures.");
+        }
+        // full blocks by weak checksum, chained in block order through next[]
+        Map<Integer, Integer> first = new HashMap<>();
+        int[] next = new int[blocks];
+        int tailLength = (int) (oldSize - (long) (blocks - 1) * block);
+        int full = tailLength == block ? blocks : blocks - 1;
+        for (int i = full - 1; i >= 0; i--) {
+            Integer previous = first.put(header.getInt(HEADER + i * ENTRY), i);
+            next[i] = previous == null ? -1 : previous;
+        }
+
+        Path out = Files.createTempFile("sync-", ".delta");
+        MessageDigest whole = digest("SHA-256");
+        MessageDigest md5 = digest("MD5");
+        byte[] strong = new byte[STRONG_LENGTH];
+        byte[] buf = new byte[LITERAL_LIMIT + block + READ_SIZE];
+        long reused = 0;
+        long literal = 0;
+        long size = 0;
+        try (InputStream in = Files.newInputStream(local);
+             DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(out), 65536))) {
+            delta.writeInt(block);
+            delta.writeLong(oldSize);
+            int limit = 0;   // bytes in buf
+            int pos = 0;     // start of the window
+            int pending = 0; // first byte not yet sent
+            int runFirst = -1;
+            int runBlocks = 0;
+            boolean eof = false;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (limit - pos < block && !eof) {
+                    // keep the unsent bytes, read more behind them
+                    System.arraycopy(buf, pending, buf, 0, limit - pending);
+                    pos -= pending;
+                    limit -= pending;
+                    pending = 0;
+                    int n;
+                    while (limit < buf.length && (n = in.read(buf, limit, buf.length - limit)) > 0) {
+                        whole.update(buf, limit, n);
+                        limit += n;
+                        size += n;
+                    }
+                    eof = limit < buf.length;
+                    continue;
+                }
+                int window = Math.min(block, limit - pos);
+                if (window < block) {
+                    // last, short window: only the old file's short last block can match
+                    if (window > 0 && window == tailLength && full < blocks
+                            && weak(buf, pos, window) == header.getInt(HEADER + full * ENTRY)
+                            && sameHash(md5, buf, pos, window, signatures, full, strong)) {
+                        if (pending < pos) {
+                            sendCopy(delta, runFirst, runBlocks);
+                            runFirst = -1;
+                            runBlocks = 0;
+                            literal += sendLiteral(delta, buf, pending, pos);
+                        }
+                        if (runFirst >= 0 && runFirst + runBlocks == full) {
+                            runBlocks++;
+                        } else {
+                            sendCopy(delta, runFirst, runBlocks);
+                            runFirst = full;
+                            runBlocks = 1;
+                        }
+                        reused += window;
+                        pos += window;
+                        pending = pos;
+                    }
+                    break;
+                }
+                if (!rolling) {
+                    int checksum = weak(buf, pos, block);
+                    a = checksum & 0xffff;
+                    b = checksum >>> 16;
+                    rolling = true;
+                }
+                int match = -1;
+                Integer candidate = first.get((a & 0xffff) | (b << 16));
+                if (candidate != null) {
+                    md5.update(buf, pos, block);
+                    digestInto(md5, strong);
+                    // the block after the current run is the likeliest match
+                    int expected = runFirst + runBlocks;
+                    if (runFirst >= 0 && expected < full
+                            && header.getInt(HEADER + expected * ENTRY) == ((a & 0xffff) | (b << 16))
+                            && equalsAt(strong, signatures, expected)) {
+                        match = expected;
+                    }
+                    for (int i = candidate; match < 0 && i >= 0; i = next[i]) {
+                        if (equalsAt(strong, signatures, i)) match = i;
+                    }
+                }
+                if (match >= 0) {
+                    // a copy run is written when it ends, so it goes out before the literal that ends it
+                    if (pending < pos) {
+                        sendCopy(delta, runFirst, runBlocks);
+                        runFirst = -1;
+                        runBlocks = 0;
+                        literal += sendLiteral(delta, buf, pending, pos);
+                    }
+                    if (runFirst >= 0 && runFirst + runBlocks == match) {
+                        runBlocks++;
+                    } else {
+                        sendCopy(delta, runFirst, runBlocks);
+                        runFirst = match;
+                        runBlocks = 1;
+                    }
+                    reused += block;
+                    pos += block;
+                    pending = pos;
+                    rolling = false;
+                    continue;
+                }
+                if (pos + block < limit) {
+                    int outByte = buf[pos] & 0xff;
+                    int inByte = buf[pos + block] & 0xff;
+                    a += inByte - outByte;
+                    b += a - block * outByte;
+                } else {
+                    rolling = false;
+                }
+                pos++;
+                if (pos - pending >= LITERAL_LIMIT) {
+                    sendCopy(delta, runFirst, runBlocks);
+                    runFirst = -1;
+                    runBlocks = 0;
+                    literal += sendLiteral(delta, buf, pending, pos);
+                    pending = pos;
+                }
+            }
+            if (pending < limit) {
+                sendCopy(delta, runFirst, runBlocks);
+                runFirst = -1;
+                runBlocks = 0;
+                literal += sendLiteral(delta, buf, pending, limit);
+            }
+            sendCopy(delta, runFirst, runBlocks);
+            delta.writeByte('E');
+            delta.writeLong(size);
+            delta.write(whole.digest());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(out);
+            throw e;
+        }
+        return new Delta(out, size, reused, literal);
+    }
+
+    // in 'D' operations of at most LITERAL_LIMIT bytes, as patch() expects
+    private static long sendLiteral(DataOutputStream delta, byte[] buf, int from, int to) throws IOException {
+        for (int start = from; start < to; start += LITERAL_LIMIT) {
+            int length = Math.min(LITERAL_LIMIT, to - start);
+            delta.writeByte('D');
+            delta.writeInt(length);
+            delta.write(buf, start, length);
+        }
+        return to - from;
+    }
+
+    private static void sendCopy(DataOutputStream delta, int first, int blocks) throws IOException {
+        if (first < 0 || blocks == 0) return;
+        delta.writeByte('C');
+        delta.writeInt(first);
+        delta.writeInt(blocks);
+    }
+
+    private static boolean sameHash(MessageDigest md5, byte[] buf, int pos, int length,
+                                    byte[] signatures, int index, byte[] strong) throws IOException {
+        md5.update(buf, pos, length);
+        digestInto(md5, strong);
+        return equalsAt(strong, signatures, index);
+    }
+
+    private static void digestInto(MessageDigest md5, byte[] strong) throws IOException {
+        try {
+            md5.digest(strong, 0, STRONG_LENGTH);
+        } catch (DigestException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static boolean equalsAt(byte[] strong, byte[] signatures, int index) {
+        int offset = HEADER + index * ENTRY + 4;
+        return Arrays.equals(strong, 0, STRONG_LENGTH, signatures, offset, offset + STRONG_LENGTH);
+    }
+
+    // Server side: writes the file described by the delta to target, taking
+    // copied blocks from old (null if there is no old file)
+    public static Delta patch(Path old, Path delta, Path target) throws IOException {
+        MessageDigest whole = digest("SHA-256");
+        byte[] buffer = new byte[READ_SIZE];
+        long written = 0;
+        long reused = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta), 65536));
+             FileChannel source = old == null ? null : FileChannel.open(old, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int block = in.readInt();
+            long oldSize = in.readLong();
+            long sourceSize = source == null ? 0 : source.size();
+            if (oldSize != sourceSize) {
+                throw new IOException("The file changed on the server during the sync, try again.");
+            }
+            while (true) {
+                int op = in.read();
+                if (op == 'C') {
+                    int firstBlock = in.readInt();
+                    int blocks = in.readInt();
+                    long from = (long) firstBlock * block;
+                    if (source == null || firstBlock < 0 || blocks <= 0 || from >= sourceSize) {
+                        throw new IOException("Corrupt delta: block " + firstBlock + " is out of range.");
+                    }
+                    long length = Math.min((long) blocks * block, sourceSize - from);
+                    for (long done = 0; done < length; ) {
+                        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, length - done));
+                        while (chunk.hasRemaining()) {
+                            if (source.read(chunk, from + done + chunk.position()) < 0) {
+                                throw new IOException("The file changed on the server during the sync, try again.");
+                            }
+                        }
+                        written += write(out, whole, buffer, chunk.limit());
+                        done += chunk.limit();
+                    }
+                    reused += length;
+                } else if (op == 'D') {
+                    int length = in.readInt();
+                    if (length < 0 || length > LITERAL_LIMIT) {
+                        throw new IOException("Corrupt delta: literal of " + length + " bytes.");
+                    }
+                    in.readFully(buffer, 0, length);
+                    written += write(out, whole, buffer, length);
+                } else if (op == 'E') {
+                    long size = in.readLong();
+                    byte[] expected = new byte[32];
+                    in.readFully(expected);
+                    if (size != written || !MessageDigest.isEqual(expected, whole.digest())) {
+                        throw new IOException("The rebuilt file does not match, it was left unchanged.");
+                    }
+                    return new Delta(target, written, reused, written - reused);
+                } else {
+                    throw new IOException("Corrupt delta: unknown operation " + op + ".");
+                }
+            }
+        }
+    }
+
+    private static int write(FileChannel out, MessageDigest whole, byte[] data, int length) throws IOException {
+        whole.update(data, 0, length);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return length;
+    }
+}
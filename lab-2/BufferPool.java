@@ -0,0 +1,37 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Direct buffers of one size, taken and given back by any thread, so
+// sending or receiving a datagram allocates nothing once the pool is warm.
+// Up to maxIdle buffers are kept; more are created when all are in use and
+// left to the garbage collector when they come back.
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    // cleared, ready to be filled
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+        idleCount.decrementAndGet();
+        return buffer.clear();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) return;
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.add(buffer);
+    }
+}
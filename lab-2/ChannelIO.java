@@ -0,0 +1,443 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Text lines and binary frames over one blocking SocketChannel.
+// A frame is an 8-byte big-endian length followed by that many bytes.
+// Read-ahead is kept in a single buffer that is drained before any
+// zero-copy transfer, so text and binary data can be mixed freely.
+// Output is buffered: appendLine collects lines, every write* method
+// flushes, so a long reply goes out in few large writes.
+//
+// Protocol 2, switched on by the line 'proto 2', frames every message:
+//   request: int id, int length, command (UTF-8)
+//   reply:   int id, int status length, long body length, status, body
+// A 'put' request is followed by its upload as a frame. Replies carry the
+// id of their request and may arrive in any order. Replies with id -1 are
+// notices the server pushes on its own (see 'watch' in FileServer).
+//
+// After 'compress deflate' is answered with SUCCESS both directions are one
+// deflate stream each, sync-flushed at every flush(), so every reply can be
+// decoded as soon as it arrives. Zero-copy transfers are not possible then;
+// files go through the deflater, and already compressed ones (by name, or
+// when a sample does not shrink) are sent as stored blocks.
+public class ChannelIO {
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    private static final int FILE_CHUNK = 64 * 1024;
+    private static final int SAMPLE_SIZE = 256 * 1024; // compressed as a test before the rest of a file
+    private static final double MIN_SAVING = 0.05;
+    private static final Set<String> COMPRESSED_FORMATS = Set.of(
+            "gz", "tgz", "zip", "jar", "bz2", "xz", "zst", "lz4", "7z", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp3", "aac", "ogg", "opus", "flac",
+            "mp4", "m4a", "mkv", "webm", "avi", "mov", "pdf", "docx", "xlsx", "pptx", "odt");
+    private static final ByteBuffer NOTHING = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocate(8192);
+    private final ByteBuffer out = ByteBuffer.allocate(8192);
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private byte[] line = new byte[256];
+
+    // set once compression is negotiated
+    private Deflater deflater;
+    private Inflater inflater;
+    private ByteBuffer raw;      // compressed input, read mode
+    private ByteBuffer wire;     // compressed output
+    private boolean unflushed;   // deflater input since the last sync flush
+
+    // bytes as seen by the caller and as sent over the socket
+    private final long opened = System.nanoTime();
+    private long bytesOut;
+    private long wireOut;
+    private long bytesIn;
+    private long wireIn;
+
+    public ChannelIO(SocketChannel channel) {
+        this.channel = channel;
+        this.in.flip(); // start empty, in read mode
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    // Held around a whole reply by callers that write from several threads.
+    // Not a monitor: a virtual thread blocked in a write while holding one
+    // would pin its carrier thread.
+    public ReentrantLock writeLock() {
+        return writeLock;
+    }
+
+    // Switches both directions to deflate. Call right after the handshake
+    // line has been written (server) or read (client); anything already
+    // buffered beyond it is compressed input.
+    public void enableCompression() {
+        if (deflater != null) return;
+        deflater = new Deflater(LEVEL);
+        inflater = new Inflater();
+        wire = ByteBuffer.allocate(16 * 1024);
+        raw = ByteBuffer.allocate(16 * 1024);
+        raw.put(in).flip();
+        inflater.setInput(raw);
+    }
+
+    public boolean compressed() {
+        return deflater != null;
+    }
+
+    // true unless the name says the content is compressed already
+    public static boolean compressible(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_FORMATS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // bytes sent and received as seen by the caller, before compression
+    public long bytesSent() {
+        return bytesOut;
+    }
+
+    public long bytesReceived() {
+        return bytesIn;
+    }
+
+    // e.g. "sent 10485760 bytes (2113 on the wire), received 52 bytes (60 on the wire), 95.1 MB/s over 0.1 s"
+    public String traffic() {
+        double seconds = Math.max(System.nanoTime() - opened, 1) / 1e9;
+        return String.format(Locale.ROOT, "sent %d bytes (%d on the wire), received %d bytes (%d on the wire), %.1f MB/s over %.1f s",
+                bytesOut, wireOut, bytesIn, wireIn, (bytesOut + bytesIn) / seconds / 1e6, seconds);
+    }
+
+    private boolean fill() throws IOException {
+        if (inflater != null) {
+            return inflate();
+        }
+        in.compact();
+        int n = channel.read(in);
+        in.flip();
+        if (n > 0) {
+            bytesIn += n;
+            wireIn += n;
+        }
+        return n >= 0;
+    }
+
+    // Inflates at least one byte into the read buffer; false at end of stream
+    private boolean inflate() throws IOException {
+        in.compact();
+        try {
+            while (in.hasRemaining()) {
+                int n = inflater.inflate(in);
+                if (n > 0) {
+                    bytesIn += n;
+                    return true;
+                }
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    return false;
+                }
+                if (inflater.needsInput()) {
+                    raw.clear();
+                    int read = channel.read(raw);
+                    raw.flip();
+                    if (read < 0) return false;
+                    wireIn += read;
+                    inflater.setInput(raw);
+                }
+            }
+            return true;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed stream: " + e.getMessage());
+        } finally {
+            in.flip();
+        }
+    }
+
+    // Next line without its terminator, or null at end of stream
+    public String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    if (length > 0 && line[length - 1] == '\r') length--;
+                    return new String(line, 0, length, StandardCharsets.UTF_8);
+                }
+                if (length == MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long.");
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                }
+                line[length++] = b;
+            }
+            if (!fill()) {
+                return length == 0 ? null : new String(line, 0, length, StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    // true when the peer has closed the connection and nothing is buffered
+    public boolean atEnd() throws IOException {
+        return !in.hasRemaining() && !fill();
+    }
+
+    // true when a read would find data without waiting for the peer
+    public boolean ready() throws IOException {
+        if (in.hasRemaining() || (raw != null && raw.hasRemaining())) return true;
+        return channel.socket().getInputStream().available() > 0;
+    }
+
+    public int readInt() throws IOException {
+        while (in.remaining() < 4) {
+            if (!fill()) throw new EOFException("Connection closed inside a frame.");
+        }
+        return in.getInt();
+    }
+
+    public byte[] readBytes(int count) throws IOException {
+        byte[] bytes = new byte[count];
+        readFully(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    public long readLong() throws IOException {
+        while (in.remaining() < 8) {
+            if (!fill()) throw new EOFException("Connection closed inside a frame.");
+        }
+        return in.getLong();
+    }
+
+    public void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.hasRemaining()) {
+                int chunk = Math.min(in.remaining(), buffer.remaining());
+                ByteBuffer slice = in.slice();
+                slice.limit(chunk);
+                buffer.put(slice);
+                in.position(in.position() + chunk);
+            } else if (inflater == null && buffer.remaining() >= in.capacity()) {
+                // large reads bypass the line buffer
+                int n = channel.read(buffer);
+                if (n < 0) throw new EOFException("Connection closed inside a frame.");
+                bytesIn += n;
+                wireIn += n;
+            } else if (!fill()) {
+                throw new EOFException("Connection closed inside a frame.");
+            }
+        }
+    }
+
+    // Copies count bytes from the connection into the file at position.
+    // Buffered bytes are written first, the rest goes socket -> file
+    // through FileChannel.transferFrom without passing through the heap.
+    // A compressed stream is inflated through the read buffer instead.
+    public void receive(FileChannel file, long position, long count) throws IOException {
+        long done = drain(file, position, count);
+        while (done < count) {
+            if (inflater != null) {
+                if (!fill()) throw new EOFException("Connection closed inside a frame.");
+                done += drain(file, position + done, count - done);
+                continue;
+            }
+            long n = file.transferFrom(channel, position + done, count - done);
+            if (n == 0) {
+                // nothing transferred: either end of stream or a short read
+                if (!fill()) throw new EOFException("Connection closed inside a frame.");
+                receive(file, position + done, count - done);
+                return;
+            }
+            bytesIn += n;
+            wireIn += n;
+            done += n;
+        }
+    }
+
+    // writes up to count buffered bytes to the file
+    private long drain(FileChannel file, long position, long count) throws IOException {
+        long done = 0;
+        if (in.hasRemaining() && count > 0) {
+            int chunk = (int) Math.min(in.remaining(), count);
+            ByteBuffer slice = in.slice();
+            slice.limit(chunk);
+            while (slice.hasRemaining()) {
+                done += file.write(slice, position + done);
+            }
+            in.position(in.position() + chunk);
+        }
+        return done;
+    }
+
+    // Discards count bytes, e.g. the body of a rejected upload
+    public void skip(long count) throws IOException {
+        while (count > 0) {
+            if (!in.hasRemaining() && !fill()) {
+                throw new EOFException("Connection closed inside a frame.");
+            }
+            int chunk = (int) Math.min(in.remaining(), count);
+            in.position(in.position() + chunk);
+            count -= chunk;
+        }
+    }
+
+    public void appendLine(String text) throws IOException {
+        appendBytes((text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeLine(String text) throws IOException {
+        appendLine(text);
+        flush();
+    }
+
+    public void writeLong(long value) throws IOException {
+        if (out.remaining() < 8) flush();
+        out.putLong(value);
+        flush();
+    }
+
+    public void writeFrame(byte[] data) throws IOException {
+        writeLong(data.length);
+        write(ByteBuffer.wrap(data));
+        flush();
+    }
+
+    public void writeRequest(int id, String command) throws IOException {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        appendHeader(8, id, bytes.length);
+        appendBytes(bytes);
+        flush();
+    }
+
+    // Buffers a reply header and status; the caller sends the body and flushes
+    public void appendReply(int id, String status, long bodyLength) throws IOException {
+        byte[] bytes = status.getBytes(StandardCharsets.UTF_8);
+        appendHeader(16, id, bytes.length);
+        out.putLong(bodyLength);
+        appendBytes(bytes);
+    }
+
+    private void appendHeader(int size, int id, int length) throws IOException {
+        if (out.remaining() < size) flush();
+        out.putInt(id).putInt(length);
+    }
+
+    public void appendBytes(byte[] bytes) throws IOException {
+        if (bytes.length > out.remaining()) flush();
+        if (bytes.length > out.capacity()) {
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            out.put(bytes);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flip();
+        write(out);
+        out.clear();
+        if (unflushed) {
+            deflate(NOTHING, Deflater.SYNC_FLUSH);
+            unflushed = false;
+        }
+    }
+
+    // Sends count bytes of the file with FileChannel.transferTo (sendfile),
+    // or through the deflater when the session is compressed
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        sendFile(file, position, count, true);
+    }
+
+    public void sendFile(FileChannel file, long position, long count, boolean compressible) throws IOException {
+        flush();
+        if (deflater != null) {
+            deflateFile(file, position, count, compressible);
+            return;
+        }
+        long done = 0;
+        while (done < count) {
+            long n = file.transferTo(position + done, count - done, channel);
+            if (n <= 0 && position + done >= file.size()) {
+                throw new EOFException("File shrank while it was being sent.");
+            }
+            done += n;
+        }
+        bytesOut += count;
+        wireOut += count;
+    }
+
+    // The first SAMPLE_SIZE bytes are compressed and flushed on their own;
+    // if that saved less than MIN_SAVING the rest is only stored.
+    private void deflateFile(FileChannel file, long position, long count, boolean compressible) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(FILE_CHUNK);
+        long readBefore = deflater.getBytesRead();
+        long writtenBefore = deflater.getBytesWritten();
+        boolean sampling = compressible;
+        deflater.setLevel(compressible ? LEVEL : Deflater.NO_COMPRESSION);
+        try {
+            long done = 0;
+            while (done < count) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), count - done));
+                int n = file.read(chunk, position + done);
+                if (n < 0) {
+                    throw new EOFException("File shrank while it was being sent.");
+                }
+                chunk.flip();
+                write(chunk);
+                done += n;
+                if (sampling && done >= SAMPLE_SIZE) {
+                    sampling = false;
+                    flush();
+                    long read = deflater.getBytesRead() - readBefore;
+                    long written = deflater.getBytesWritten() - writtenBefore;
+                    if (written > read * (1 - MIN_SAVING)) {
+                        deflater.setLevel(Deflater.NO_COMPRESSION);
+                    }
+                }
+            }
+            flush();
+        } finally {
+            deflater.setLevel(LEVEL);
+        }
+    }
+
+    // Sends data, or hands it to the deflater until the next flush()
+    private void write(ByteBuffer data) throws IOException {
+        if (deflater == null) {
+            int n = data.remaining();
+            writeFully(data);
+            bytesOut += n;
+        } else if (data.hasRemaining()) {
+            bytesOut += data.remaining();
+            deflate(data, Deflater.NO_FLUSH);
+            unflushed = true;
+        }
+    }
+
+    private void deflate(ByteBuffer data, int mode) throws IOException {
+        deflater.setInput(data);
+        while (true) {
+            wire.clear();
+            int n = deflater.deflate(wire, mode);
+            wire.flip();
+            writeFully(wire);
+            // a sync flush is complete once it leaves room in the output buffer
+            if (mode == Deflater.NO_FLUSH ? deflater.needsInput() : n < wire.capacity()) {
+                return;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            wireOut += channel.write(buffer);
+        }
+    }
+}
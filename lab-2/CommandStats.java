@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Per-command counters and latency histograms, shared by all sessions of
+// a server. Recording never locks: counts are LongAdders and each
+// histogram is an AtomicLongArray of log-linear buckets (8 per power of
+// two, so a percentile is within 12.5% of the true value).
+// Cumulative numbers are shown by 'stats' and over JMX; the periodic dump
+// writes one JSON object per line with the numbers of the last interval,
+// so a p99 regression shows up in the next line instead of being averaged
+// into everything since startup.
+public class CommandStats implements CommandStatsMBean {
+    private static final Set<String> COMMANDS = Set.of("dir", "cd", "mkdir", "copy", "pwd", "find", "jobs",
+            "status", "get", "put", "sum", "sig", "sync", "stats", "watch", "exit");
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = (64 - 2) * SUB_BUCKETS;
+    private static final double[] DUMP_PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final class Latency {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    }
+
+    private final Map<String, Latency> commands = new ConcurrentHashMap<>();
+    private final long started = System.nanoTime();
+
+    // commands outside COMMANDS are counted as "unknown", so clients cannot grow the map
+    public void record(String command, long nanos, long bytes, String status) {
+        String name = COMMANDS.contains(command) ? command : "unknown";
+        Latency latency = commands.computeIfAbsent(name, k -> new Latency());
+        latency.count.increment();
+        if (status == null || status.startsWith("ERROR")) latency.errors.increment();
+        latency.bytes.add(bytes);
+        latency.totalNanos.add(nanos);
+        latency.maxNanos.accumulateAndGet(nanos, Math::max);
+        latency.buckets.incrementAndGet(bucket(nanos));
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) Math.max(nanos, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos); // >= 3
+        int sub = (int) (nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return (exponent - 2) * SUB_BUCKETS + sub;
+    }
+
+    // largest value that falls into the bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + 2;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+        return lower + (1L << (exponent - 3)) - 1;
+    }
+
+    private static long percentile(long[] counts, long total, double percentile) {
+        if (total == 0) return -1;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) return upperBound(i);
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    // a bucket's upper bound can lie above the largest value actually seen
+    private static long percentile(Latency latency, long[] counts, long total, double percentile) {
+        long nanos = percentile(counts, total, percentile);
+        return nanos < 0 ? nanos : Math.min(nanos, latency.maxNanos.get());
+    }
+
+    private static long[] snapshot(Latency latency) {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latency.buckets.get(i);
+        }
+        return counts;
+    }
+
+    // 'stats': one line per command, then the status line
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        long errors = 0;
+        for (Map.Entry<String, Latency> entry : new TreeMap<>(commands).entrySet()) {
+            Latency latency = entry.getValue();
+            long[] counts = snapshot(latency);
+            long count = 0;
+            for (long c : counts) count += c;
+            total += count;
+            errors += latency.errors.sum();
+            sb.append(summary(entry.getKey(), latency, counts, count)).append('\n');
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return sb.append(String.format(Locale.ROOT, "SUCCESS: %d commands in %.1f s, %d errors.", total, seconds, errors))
+                 .toString();
+    }
+
+    // e.g. "dir: 120 calls, 0 errors, 48213 bytes, mean 0.084 ms, p50 0.061 ms, p90 0.143 ms, p99 0.410 ms, max 1.2 ms"
+    private static String summary(String name, Latency latency, long[] counts, long count) {
+        return String.format(Locale.ROOT, "%s: %d calls, %d errors, %d bytes, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, "
+                             + "p99 %.3f ms, max %.3f ms",
+                name, count, latency.errors.sum(), latency.bytes.sum(),
+                count == 0 ? 0 : latency.totalNanos.sum() / 1e6 / count,
+                percentile(latency, counts, count, 50) / 1e6, percentile(latency, counts, count, 90) / 1e6,
+                percentile(latency, counts, count, 99) / 1e6, latency.maxNanos.get() / 1e6);
+    }
+
+    @Override
+    public long getCommandCount() {
+        long total = 0;
+        for (Latency latency : commands.values()) total += latency.count.sum();
+        return total;
+    }
+
+    @Override
+    public long getErrorCount() {
+        long total = 0;
+        for (Latency latency : commands.values()) total += latency.errors.sum();
+        return total;
+    }
+
+    @Override
+    public long getBytesTransferred() {
+        long total = 0;
+        for (Latency latency : commands.values()) total += latency.bytes.sum();
+        return total;
+    }
+
+    @Override
+    public String[] getSummary() {
+        return new TreeMap<>(commands).entrySet().stream().map(entry -> {
+            long[] counts = snapshot(entry.getValue());
+            long count = 0;
+            for (long c : counts) count += c;
+            return summary(entry.getKey(), entry.getValue(), counts, count);
+        }).toArray(String[]::new);
+    }
+
+    @Override
+    public double percentileMillis(String command, double percentile) {
+        Latency latency = commands.get(command);
+        if (latency == null || percentile < 0 || percentile > 100) return -1;
+        long[] counts = snapshot(latency);
+        long count = 0;
+        for (long c : counts) count += c;
+        long nanos = percentile(latency, counts, count, percentile);
+        return nanos < 0 ? -1 : nanos / 1e6;
+    }
+
+    // Appends one JSON line per interval to file, on a daemon thread
+    public void startDumps(Path file, long intervalSeconds) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        Map<String, long[]> previous = new HashMap<>();
+        dumper.scheduleAtFixedRate(() -> {
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                                                      StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(dump(previous, intervalSeconds));
+                out.write('\n');
+            } catch (IOException e) {
+                AsyncLog.warn("Could not write stats to " + file + ": " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // {"time":"...","interval":60,"commands":{"dir":{"count":3,"errors":0,"bytes":912,
+    //  "p50_us":61,"p90_us":143,"p99_us":410,"p99.9_us":410,"total":120},...}}
+    private String dump(Map<String, long[]> previous, long intervalSeconds) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":\"").append(Instant.now()).append("\",\"interval\":").append(intervalSeconds)
+            .append(",\"commands\":{");
+        boolean first = true;
+        for (Map.Entry<String, Latency> entry : new TreeMap<>(commands).entrySet()) {
+            Latency latency = entry.getValue();
+            long[] now = snapshot(latency);
+            long[] before = previous.getOrDefault(entry.getKey(), new long[BUCKETS + 3]);
+            long[] delta = new long[BUCKETS];
+            long count = 0;
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                delta[i] = now[i] - before[i];
+                count += delta[i];
+                total += now[i];
+            }
+            long errors = latency.errors.sum();
+            long bytes = latency.bytes.sum();
+            long[] current = Arrays.copyOf(now, BUCKETS + 3);
+            current[BUCKETS] = errors;
+            current[BUCKETS + 1] = bytes;
+            previous.put(entry.getKey(), current);
+
+            json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":{\"count\":").append(count)
+                .append(",\"errors\":").append(errors - before[BUCKETS])
+                .append(",\"bytes\":").append(bytes - before[BUCKETS + 1]);
+            for (double p : DUMP_PERCENTILES) {
+                long nanos = percentile(delta, count, p);
+                json.append(",\"p").append(p == Math.rint(p) ? String.valueOf((long) p) : String.valueOf(p))
+                    .append("_us\":").append(nanos < 0 ? -1 : nanos / 1000);
+            }
+            json.append(",\"total\":").append(total).append('}');
+            first = false;
+        }
+        return json.append("}}").toString();
+    }
+}
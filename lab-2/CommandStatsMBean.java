@@ -0,0 +1,14 @@
+// JMX view of CommandStats, registered as FileServer:type=CommandStats
+public interface CommandStatsMBean {
+    long getCommandCount();
+
+    long getErrorCount();
+
+    long getBytesTransferred();
+
+    // one line per command, as shown by 'stats'
+    String[] getSummary();
+
+    // latency of one command at a percentile (0-100) in milliseconds, -1 if it never ran
+    double percentileMillis(String command, double percentile);
+}
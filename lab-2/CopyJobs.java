@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Background copies for the 'copy' command, shared by all sessions of a
+// server. A fixed pool runs at most 'concurrency' copies at once so a few
+// large jobs cannot swamp the disk; further jobs wait in a bounded queue
+// and are rejected when it is full. Data moves with FileChannel.transferTo
+// in large chunks into a temporary file next to the target, which is
+// renamed into place when complete.
+// Tree copies ('copy -r') run as one job whose files are spread over a
+// ForkJoinPool: each directory task creates its target directory, then
+// forks one task per subdirectory, one per large file and one per batch
+// of small files, so many small files do not cost one task each.
+public class CopyJobs {
+    private static final long CHUNK = 8L * 1024 * 1024;
+    private static final long SMALL_FILE = 1024 * 1024; // batched below this size
+    private static final int BATCH_FILES = 64;
+    private static final long BATCH_BYTES = 8L * 1024 * 1024;
+
+    public enum State { QUEUED, RUNNING, DONE, FAILED }
+
+    public static final class Job {
+        public final long id;
+        public final String description;
+        final Path source;
+        final Path target;
+        final boolean tree;
+        volatile State state = State.QUEUED;
+        volatile long total = -1;
+        final AtomicLong done = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+        volatile long startNanos;
+        volatile long endNanos;
+        volatile String error;
+
+        Job(long id, Path source, Path target, String description, boolean tree) {
+            this.id = id;
+            this.tree = tree;
+            this.source = source;
+            this.target = target;
+            this.description = description;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        // e.g. "[job 3] RUNNING a.iso -> backup: 1048576/4194304 bytes (25%), 812.4 MB/s, 0.1 s"
+        public String describe() {
+            State s = state;
+            long bytes = done.get();
+            long size = total;
+            StringBuilder sb = new StringBuilder();
+            sb.append("[job ").append(id).append("] ").append(s).append(' ').append(description);
+            if (s == State.QUEUED) return sb.toString();
+            if (tree) {
+                sb.append(": ").append(files.get()).append(" files, ").append(bytes).append(" bytes");
+            } else {
+                sb.append(": ").append(bytes).append('/').append(size < 0 ? "?" : String.valueOf(size)).append(" bytes");
+            }
+            if (size > 0) sb.append(" (").append(bytes * 100 / size).append("%)");
+            long end = s == State.RUNNING ? System.nanoTime() : endNanos;
+            double seconds = (end - startNanos) / 1e9;
+            if (seconds > 0) {
+                sb.append(String.format(Locale.ROOT, ", %.1f MB/s, %.1f s", bytes / seconds / 1e6, seconds));
+            }
+            if (s == State.FAILED) sb.append(" - ").append(error);
+            return sb.toString();
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final ForkJoinPool treePool;
+    private final ListingCache listings;
+    private final AtomicLong ids = new AtomicLong();
+
+    public CopyJobs(ListingCache listings, int concurrency, int queueLimit, int treeParallelism) {
+        this.listings = listings;
+        this.treePool = new ForkJoinPool(treeParallelism);
+        this.pool = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                                           new ArrayBlockingQueue<>(queueLimit), r -> {
+            Thread t = new Thread(r, "fs-copy");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Queues a copy of source to target; throws RejectedExecutionException
+    // when too many jobs are already waiting
+    public Job submit(Path source, Path target, String description) {
+        Job job = new Job(ids.incrementAndGet(), source, target, description, false);
+        pool.execute(() -> run(job));
+        return job;
+    }
+
+    // Queues a recursive copy of the directory source to target, which must
+    // not exist inside source
+    public Job submitTree(Path source, Path target, String description) {
+        Job job = new Job(ids.incrementAndGet(), source, target, description, true);
+        pool.execute(() -> run(job));
+        return job;
+    }
+
+    // Copies on the calling thread, for files too small to be worth a job
+    public void copyNow(Path source, Path target) throws IOException {
+        transfer(source, target, null);
+    }
+
+    private void run(Job job) {
+        job.startNanos = System.nanoTime();
+        job.state = State.RUNNING;
+        try {
+            if (job.tree) {
+                treePool.invoke(new CopyDirectory(job, job.source, job.target));
+            } else {
+                transfer(job.source, job.target, job);
+            }
+            job.state = State.DONE;
+        } catch (IOException | RuntimeException e) {
+            Throwable cause = e; // tree copies fail with wrapped IOExceptions
+            while (cause.getCause() != null) cause = cause.getCause();
+            job.error = cause.getMessage();
+            job.state = State.FAILED;
+            AsyncLog.warn().append("Copy job ").append(job.id).append(" failed: ").append(job.error).log();
+        } finally {
+            job.endNanos = System.nanoTime();
+        }
+    }
+
+    private void transfer(Path source, Path target, Job job) throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", ".part");
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                if (job != null && !job.tree) job.total = size;
+                long position = 0;
+                while (position < size) {
+                    long n = in.transferTo(position, Math.min(CHUNK, size - position), out);
+                    if (n <= 0) throw new IOException("Source shrank during the copy.");
+                    position += n;
+                    if (job != null) job.done.addAndGet(n);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        listings.invalidate(target.getParent());
+    }
+
+    @SuppressWarnings("serial") // tasks are never serialized
+    private final class CopyDirectory extends RecursiveAction {
+        final Job job;
+        final Path source;
+        final Path target;
+
+        CopyDirectory(Job job, Path source, Path target) {
+            this.job = job;
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                // the directory exists before any task below it runs
+                if (!Files.isDirectory(target)) {
+                    Files.createDirectory(target);
+                    listings.invalidate(target.getParent());
+                }
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                List<Path> batch = new ArrayList<>();
+                long batchBytes = 0;
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                    for (Path entry : entries) {
+                        BasicFileAttributes attributes =
+                                Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        Path destination = target.resolve(entry.getFileName().toString());
+                        if (attributes.isDirectory()) {
+                            tasks.add(new CopyDirectory(job, entry, destination));
+                        } else if (!attributes.isRegularFile()) {
+                            continue; // links and special files are not copied
+                        } else if (attributes.size() >= SMALL_FILE) {
+                            tasks.add(new CopyFile(job, entry, destination));
+                        } else {
+                            batch.add(entry);
+                            batchBytes += attributes.size();
+                            if (batch.size() == BATCH_FILES || batchBytes >= BATCH_BYTES) {
+                                tasks.add(new CopyBatch(job, batch, target));
+                                batch = new ArrayList<>();
+                                batchBytes = 0;
+                            }
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) tasks.add(new CopyBatch(job, batch, target));
+                invokeAll(tasks);
+                listings.invalidate(target);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial") // tasks are never serialized
+    private final class CopyFile extends RecursiveAction {
+        final Job job;
+        final Path source;
+        final Path target;
+
+        CopyFile(Job job, Path source, Path target) {
+            this.job = job;
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                transfer(source, target, job);
+                job.files.incrementAndGet();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // small files of one directory, copied one after another by one task
+    @SuppressWarnings("serial") // tasks are never serialized
+    private static final class CopyBatch extends RecursiveAction {
+        final Job job;
+        final List<Path> sources;
+        final Path targetDirectory;
+
+        CopyBatch(Job job, List<Path> sources, Path targetDirectory) {
+            this.job = job;
+            this.sources = sources;
+            this.targetDirectory = targetDirectory;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (Path source : sources) {
+                    Path target = targetDirectory.resolve(source.getFileName().toString());
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                    job.done.addAndGet(Files.size(target));
+                    job.files.incrementAndGet();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -1,12 +1,72 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32C;
 
+// Interactive client, or with a script file, a batch client. On connect it
+// asks for protocol 2 (framed requests and replies with ids, see
+// ChannelIO); servers that do not know it answer ERROR and the client
+// stays on the line protocol. Scripts are pipelined over protocol 2: up to
+// MAX_IN_FLIGHT commands are on the wire at once and replies are printed
+// as they arrive, which may be out of order.
+// Before that it offers 'compress deflate' unless started with
+// -Dcompression=off, and prints the session's traffic when it ends.
+// Interactively on protocol 2 it also sends 'watch' (unless started with
+// -Dlisting.cache=off) and keeps the 'dir' listings it has seen until the
+// server pushes a change, so a repeated 'dir', and a 'cd' into a directory
+// those listings show, are answered without waiting for the server.
 public class FileClient {
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final boolean COMPRESSION = !"off".equalsIgnoreCase(System.getProperty("compression"));
+    private static final boolean LISTING_CACHE = !"off".equalsIgnoreCase(System.getProperty("listing.cache"));
+    private static final int MAX_LISTINGS = 256;
+    private static final int PUSH_ID = -1; // see 'watch' in FileServer
+
+    private final String hostname;
+    private final int port;
+    private final ChannelIO io;
+    private final boolean framed;
+    private int nextId = 1;
+
+    // 'dir' replies by directory ("/a/b/"), least recently used first
+    private final Map<String, String> listings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+    private final Set<String> changed = new HashSet<>(); // pushed since the last 'dir' was sent
+    private final Set<Integer> unanswered = new HashSet<>(); // ids of 'cd's already answered here
+    private String cwd; // the server's current directory, null when unknown or not watching
+
+    private FileClient(String hostname, int port, ChannelIO io, boolean framed) {
+        this.hostname = hostname;
+        this.port = port;
+        this.io = io;
+        this.framed = framed;
+    }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java FileClient <server_IP_address> <port>");
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java FileClient <server_IP_address> <port> [script_file]");
             return;
         }
 
@@ -19,39 +79,643 @@ public class FileClient {
             return;
         }
 
-        try (Socket socket = new Socket(hostname, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             Scanner scanner = new Scanner(System.in)) {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(hostname, port))) {
+            ChannelIO io = connect(socket);
+            io.writeLine("proto 2");
+            String answer = io.readLine();
+            FileClient client = new FileClient(hostname, port, io, answer != null && answer.startsWith("SUCCESS"));
 
-            System.out.println("Connected to server. Enter commands (dir, cd .., cd path, mkdir name, copy source dest, exit):");
-            String userInput;
+            if (args.length == 3) {
+                client.runScript(Paths.get(args[2]));
+                System.out.println("Session traffic: " + io.traffic());
+                return;
+            }
+            if (client.framed && LISTING_CACHE) {
+                client.watch();
+            }
+
+            System.out.println("Connected to server" + (client.framed ? " (protocol 2)" : "")
+                               + (io.compressed() ? " (deflate)" : "")
+                               + (client.cwd != null ? " (cached listings)" : "")
+                               + ". Enter commands (dir [--page N], cd .., cd path, mkdir name, copy [-r] source dest, find pattern, jobs, status id, stats, "
+                               + "get remote [local [streams]], put local [remote], sync local [remote], exit):");
+            Scanner scanner = new Scanner(System.in);
             while (true) {
                 System.out.print("> ");
-                userInput = scanner.nextLine();
+                if (!scanner.hasNextLine()) break;
+                String userInput = scanner.nextLine();
                 
                 if (userInput.trim().isEmpty()) continue;
 
-                out.println(userInput); // send command
-
-                // read server response
-                String responseLine;
-                while ((responseLine = in.readLine()) != null) {
-                    System.out.println(responseLine);
-                    if (responseLine.startsWith("SUCCESS") || responseLine.startsWith("ERROR")) {
-                        break; 
-                    }
-                }
-
-                if (userInput.trim().equalsIgnoreCase("exit")) {
+                if (!client.run(userInput)) {
                     break;
                 }
             }
+            System.out.println("Session traffic: " + io.traffic());
 
-        } catch (UnknownHostException e) {
+        } catch (UnresolvedAddressException e) {
             System.err.println("Unknown host: " + hostname);
         } catch (IOException e) {
             System.err.println("I/O Error: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    // Runs one command and prints its result; false once the session has ended
+    private boolean run(String userInput) throws IOException {
+        String[] parts = userInput.trim().split("\\s+");
+        String command = parts[0].toLowerCase();
+        if (command.equals("get")) {
+            if (parts.length < 2 || parts.length > 4) {
+                System.out.println("Usage: get remote [local [streams]]");
+                return true;
+            }
+            Path local = Paths.get(parts.length > 2 ? parts[2] : Paths.get(parts[1]).getFileName().toString());
+            int streams;
+            try {
+                streams = parts.length > 3 ? Integer.parseInt(parts[3]) : 1;
+            } catch (NumberFormatException e) {
+                streams = 0;
+            }
+            if (streams < 1 || streams > MAX_STREAMS) {
+                System.out.println("Streams must be a number between 1 and " + MAX_STREAMS + ".");
+                return true;
+            }
+            if (!framed) {
+                download(io, hostname, port, parts[1], local, streams);
+                return true;
+            }
+            // chunked downloads use line-protocol connections of their own
+            String remote = parts[1];
+            if (!remote.startsWith("/") && cwd != null) {
+                remote = cwd + remote;
+            } else if (!remote.startsWith("/")) {
+                Reply pwd = request("pwd");
+                if (!pwd.status.startsWith("SUCCESS")) {
+                    System.out.println(pwd.status);
+                    return true;
+                }
+                remote = pwd.status.substring(pwd.status.indexOf('/')) + remote;
+            }
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, port))) {
+                ChannelIO transfer = connect(channel);
+                download(transfer, hostname, port, remote, local, streams);
+                transfer.writeLine("exit");
+                transfer.readLine();
+            }
+            return true;
+        }
+        if (command.equals("put")) {
+            if (parts.length < 2) {
+                System.out.println("Usage: put local [remote]");
+                return true;
+            }
+            Path local = Paths.get(parts[1]);
+            if (!Files.isRegularFile(local)) {
+                System.out.println("Local file does not exist: " + parts[1]);
+                return true;
+            }
+            String remote = parts.length > 2 ? parts[2] : local.getFileName().toString();
+            if (framed) {
+                int id = nextId++;
+                sendPut(id, "put " + remote, local);
+                System.out.println(readReply().status);
+                return true;
+            }
+            try (FileChannel file = FileChannel.open(local, StandardOpenOption.READ)) {
+                long length = file.size();
+                io.writeLine("put " + remote);
+                io.writeLong(length);
+                io.sendFile(file, 0, length, ChannelIO.compressible(local.getFileName().toString()));
+            }
+            readResponse(io);
+            return true;
+        }
+
+        if (command.equals("sync")) {
+            if (parts.length < 2 || parts.length > 3) {
+                System.out.println("Usage: sync local [remote]");
+                return true;
+            }
+            Path local = Paths.get(parts[1]);
+            if (!Files.isRegularFile(local)) {
+                System.out.println("Local file does not exist: " + parts[1]);
+                return true;
+            }
+            sync(local, parts.length > 2 ? parts[2] : local.getFileName().toString());
+            return true;
+        }
+
+        if (command.equals("dir") && parts.length == 1 && cwd != null) {
+            dir();
+        } else if (command.equals("cd") && parts.length > 1 && cwd != null) {
+            cd(parts[1]);
+        } else if (framed) {
+            System.out.println(request(userInput).status);
+        } else {
+            io.writeLine(userInput); // send command
+
+            // read server response
+            String status = readResponse(io);
+            if (command.equals("sum") && status != null && status.startsWith("SUCCESS")) {
+                io.skip(io.readLong()); // checksum frame, only useful to 'get'
+            }
+        }
+        return !command.equals("exit");
+    }
+
+    // Line-protocol I/O for a new connection, compressed if the server agrees
+    private static ChannelIO connect(SocketChannel channel) throws IOException {
+        ChannelIO io = new ChannelIO(channel);
+        if (COMPRESSION) {
+            io.writeLine("compress deflate");
+            String answer = io.readLine();
+            if (answer != null && answer.startsWith("SUCCESS")) {
+                io.enableCompression();
+            }
+        }
+        return io;
+    }
+
+    // prints response lines up to and including the status line
+    private static String readResponse(ChannelIO io) throws IOException {
+        String responseLine;
+        while ((responseLine = io.readLine()) != null) {
+            System.out.println(responseLine);
+            if (responseLine.startsWith("SUCCESS") || responseLine.startsWith("ERROR")) {
+                break; 
+            }
+        }
+        return responseLine;
+    }
+
+    // A protocol 2 reply; a body of bodyLength bytes follows it on the wire
+    private static final class Reply {
+        final int id;
+        final String status;
+        final long bodyLength;
+
+        Reply(int id, String status, long bodyLength) {
+            this.id = id;
+            this.status = status;
+            this.bodyLength = bodyLength;
+        }
+    }
+
+    private Reply readReply() throws IOException {
+        Reply reply;
+        while ((reply = readFrame()) == null) {
+            // a push, or the reply to a 'cd' answered here
+        }
+        return reply;
+    }
+
+    // Next reply frame, or null if it was handled here
+    private Reply readFrame() throws IOException {
+        int id = io.readInt();
+        int statusLength = io.readInt();
+        long bodyLength = io.readLong();
+        String status = new String(io.readBytes(statusLength), StandardCharsets.UTF_8);
+        if (id == PUSH_ID) {
+            // "CHANGED: /a/b/"
+            String directory = status.substring(status.indexOf('/'));
+            listings.remove(directory);
+            changed.add(directory);
+            io.skip(bodyLength);
+            return null;
+        }
+        if (unanswered.remove(id)) {
+            io.skip(bodyLength);
+            if (!status.startsWith("SUCCESS")) {
+                // the listings were wrong after all; the next 'dir' tells where we are
+                System.out.println(status);
+                listings.clear();
+                cwd = null;
+            }
+            return null;
+        }
+        return new Reply(id, status, bodyLength);
+    }
+
+    // Reads the pushes that have already arrived; nothing else is in flight interactively
+    private void drainPushes() throws IOException {
+        while (io.ready()) {
+            readFrame();
+        }
+    }
+
+    // Asks the server to push listing changes; the cache is used only if it agrees
+    private void watch() throws IOException {
+        if (!request("watch").status.startsWith("SUCCESS")) return;
+        Reply pwd = request("pwd");
+        if (pwd.status.startsWith("SUCCESS")) {
+            cwd = pwd.status.substring(pwd.status.indexOf('/'));
+        }
+    }
+
+    private void dir() throws IOException {
+        drainPushes();
+        String listing = listings.get(cwd);
+        if (listing == null) {
+            changed.clear();
+            listing = request("dir").status;
+            if (listing.startsWith("SUCCESS")) {
+                // "SUCCESS: Current directory: /a/b/\n[DIR] c..."
+                int newline = listing.indexOf('\n');
+                cwd = listing.substring(listing.indexOf('/'), newline < 0 ? listing.length() : newline);
+                if (!changed.contains(cwd)) listings.put(cwd, listing);
+            }
+        }
+        System.out.println(listing);
+    }
+
+    // A 'cd' into a directory the cached listings show is sent without
+    // waiting for its reply; the message is the one the server would send
+    private void cd(String target) throws IOException {
+        drainPushes();
+        String directory = resolve(cwd, target);
+        String message = target.equals("..") ? "SUCCESS: Current directory changed to parent."
+                : "SUCCESS: Current directory changed to: "
+                  + (directory == null ? "" : directory.substring(1, Math.max(directory.length() - 1, 1)));
+        if (directory != null && listed(directory)) {
+            unanswered.add(nextId);
+            io.writeRequest(nextId++, "cd " + target);
+            cwd = directory;
+            System.out.println(message);
+            return;
+        }
+        String status = request("cd " + target).status;
+        System.out.println(status);
+        if (status.startsWith("SUCCESS")) {
+            cwd = directory;
+        }
+    }
+
+    // "/a/b/" and "../c" -> "/a/c/", as the server resolves it; null above the root
+    private static String resolve(String directory, String path) {
+        List<String> names = new ArrayList<>();
+        if (!path.startsWith("/")) {
+            for (String name : directory.split("/")) {
+                if (!name.isEmpty()) names.add(name);
+            }
+        }
+        for (String name : path.split("/")) {
+            if (name.isEmpty() || name.equals(".")) continue;
+            if (name.equals("..")) {
+                if (names.isEmpty()) return null;
+                names.remove(names.size() - 1);
+            } else {
+                names.add(name);
+            }
+        }
+        return names.isEmpty() ? "/" : "/" + String.join("/", names) + "/";
+    }
+
+    // true if every step to the directory is a [DIR] line of a cached listing
+    private boolean listed(String directory) {
+        String parent = "/";
+        for (String name : directory.split("/")) {
+            if (name.isEmpty()) continue;
+            String listing = listings.get(parent);
+            if (listing == null || !("\n" + listing + "\n").contains("\n[DIR] " + name + "\n")) return false;
+            parent = parent + name + "/";
+        }
+        return true;
+    }
+
+    // one command, one reply; used interactively, where nothing else is in flight
+    private Reply request(String command) throws IOException {
+        io.writeRequest(nextId++, command);
+        Reply reply = readReply();
+        io.skip(reply.bodyLength);
+        return reply;
+    }
+
+    private void sendPut(int id, String command, Path local) throws IOException {
+        try (FileChannel file = FileChannel.open(local, StandardOpenOption.READ)) {
+            long length = file.size();
+            io.writeRequest(id, command);
+            io.writeLong(length);
+            io.sendFile(file, 0, length, ChannelIO.compressible(local.getFileName().toString()));
+        }
+    }
+
+    // Uploads local as a delta against the server's copy of remote: the
+    // server's block signatures come first, then only the blocks it does
+    // not have yet go over the wire (see BlockSignatures)
+    private void sync(Path local, String remote) throws IOException {
+        String status;
+        byte[] signatures = null;
+        if (framed) {
+            io.writeRequest(nextId++, "sig " + remote);
+            Reply reply = readReply();
+            status = reply.status;
+            signatures = io.readBytes((int) reply.bodyLength);
+        } else {
+            io.writeLine("sig " + remote);
+            status = io.readLine();
+            if (status != null && status.startsWith("SUCCESS")) {
+                signatures = io.readBytes((int) io.readLong());
+            }
+        }
+        if (signatures == null || !status.startsWith("SUCCESS")) {
+            System.out.println(status);
+            return;
+        }
+        BlockSignatures.Delta delta = BlockSignatures.delta(local, signatures);
+        try {
+            System.out.println(describe(delta));
+            if (framed) {
+                sendPut(nextId++, "sync " + remote, delta.file);
+                System.out.println(readReply().status);
+            } else {
+                try (FileChannel file = FileChannel.open(delta.file, StandardOpenOption.READ)) {
+                    io.writeLine("sync " + remote);
+                    io.writeLong(file.size());
+                    io.sendFile(file, 0, file.size());
+                }
+                readResponse(io);
+            }
+        } finally {
+            Files.deleteIfExists(delta.file);
+        }
+    }
+
+    private static String describe(BlockSignatures.Delta delta) throws IOException {
+        return "Delta of " + Files.size(delta.file) + " bytes for " + delta.size + " bytes ("
+               + delta.reused + " already on the server).";
+    }
+
+    // Runs every line of the script ('#' starts a comment). With protocol 2
+    // a writer thread keeps up to MAX_IN_FLIGHT requests outstanding while
+    // this thread prints the replies; 'get' bodies are saved under the
+    // remote file name. On the line protocol the commands run one by one.
+    private void runScript(Path script) throws IOException {
+        List<String> commands = new ArrayList<>();
+        for (String line : Files.readAllLines(script)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            if (trimmed.equalsIgnoreCase("exit")) break;
+            commands.add(trimmed);
+        }
+        long start = System.nanoTime();
+        if (!framed) {
+            for (String command : commands) {
+                System.out.println("> " + command);
+                run(command);
+            }
+            run("exit");
+            printScriptTime(commands.size(), start);
+            return;
+        }
+
+        Semaphore window = new Semaphore(MAX_IN_FLIGHT);
+        Map<Integer, String> pending = new ConcurrentHashMap<>();
+        Map<Integer, CompletableFuture<byte[]>> signatureWaits = new ConcurrentHashMap<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (String command : commands) {
+                    window.acquireUninterruptibly();
+                    int id = nextId++;
+                    String[] parts = command.split("\\s+");
+                    if (parts[0].equalsIgnoreCase("sync") && parts.length >= 2) {
+                        Path local = Paths.get(parts[1]);
+                        if (!Files.isRegularFile(local)) {
+                            System.out.println("[" + id + "] " + command + "\nLocal file does not exist: " + parts[1]);
+                            window.release();
+                            continue;
+                        }
+                        // the delta needs the signatures, so wait for them here
+                        CompletableFuture<byte[]> signed = new CompletableFuture<>();
+                        signatureWaits.put(id, signed);
+                        pending.put(id, command);
+                        String remote = parts.length > 2 ? parts[2] : local.getFileName().toString();
+                        io.writeRequest(id, "sig " + remote);
+                        byte[] signatures = signed.join();
+                        if (signatures == null) continue;
+                        BlockSignatures.Delta delta = BlockSignatures.delta(local, signatures);
+                        try {
+                            window.acquireUninterruptibly();
+                            int syncId = nextId++;
+                            pending.put(syncId, command + " (" + describe(delta) + ")");
+                            sendPut(syncId, "sync " + remote, delta.file);
+                        } finally {
+                            Files.deleteIfExists(delta.file);
+                        }
+                    } else if (parts[0].equalsIgnoreCase("put") && parts.length >= 2) {
+                        Path local = Paths.get(parts[1]);
+                        if (!Files.isRegularFile(local)) {
+                            System.out.println("[" + id + "] " + command + "\nLocal file does not exist: " + parts[1]);
+                            window.release();
+                            continue;
+                        }
+                        pending.put(id, command);
+                        sendPut(id, "put " + (parts.length > 2 ? parts[2] : local.getFileName()), local);
+                    } else {
+                        pending.put(id, command);
+                        io.writeRequest(id, command);
+                    }
+                }
+                // 'exit' is ordered after everything else, so its reply comes last
+                pending.put(0, "exit");
+                io.writeRequest(0, "exit");
+            } catch (IOException e) {
+                System.err.println("I/O Error: " + e.getMessage());
+                try {
+                    io.channel().close();
+                } catch (IOException ignored) {
+                    // the reader fails next
+                }
+            }
+        }, "script-writer");
+        writer.start();
+
+        while (true) {
+            Reply reply = readReply();
+            String command = pending.remove(reply.id);
+            String[] parts = command == null ? new String[] {""} : command.split("\\s+");
+            CompletableFuture<byte[]> signed = signatureWaits.remove(reply.id);
+            if (signed != null) {
+                // signatures for a 'sync'; its second reply reports the result
+                byte[] signatures = io.readBytes((int) reply.bodyLength);
+                boolean ok = reply.status.startsWith("SUCCESS");
+                if (!ok) System.out.println("[" + reply.id + "] " + command + "\n" + reply.status);
+                window.release();
+                signed.complete(ok ? signatures : null);
+                continue;
+            }
+            if (parts[0].equalsIgnoreCase("get") && reply.status.startsWith("SUCCESS")) {
+                Path local = Paths.get(Paths.get(parts[1]).getFileName().toString());
+                try (FileChannel file = FileChannel.open(local, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                    io.receive(file, 0, reply.bodyLength);
+                }
+            } else {
+                io.skip(reply.bodyLength);
+            }
+            System.out.println("[" + reply.id + "] " + command + "\n" + reply.status);
+            if (reply.id == 0) break;
+            window.release();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        printScriptTime(commands.size(), start);
+    }
+
+    private static void printScriptTime(int commands, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d commands in %.3f s (%.0f commands/s)", commands, seconds, commands / seconds));
+    }
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_STREAMS = 16;
+
+    // Downloads remote into local in CHUNK_SIZE ranges over 'streams'
+    // connections (this one plus helpers). Chunks are written at their
+    // offset into a preallocated local.part file and checked against the
+    // server's CRC32C values; the file is renamed to local only once every
+    // chunk has been verified. A .part file left by an interrupted
+    // download is checked chunk by chunk and only the bad or missing
+    // chunks are fetched again.
+    private static void download(ChannelIO io, String hostname, int port, String remote, Path local, int streams)
+            throws IOException {
+        io.writeLine("sum " + remote + " " + CHUNK_SIZE);
+        String status = readResponse(io);
+        if (status == null || !status.startsWith("SUCCESS")) return;
+        ByteBuffer frame = ByteBuffer.allocate(Math.toIntExact(io.readLong()));
+        io.readFully(frame);
+        frame.flip();
+        long size = frame.getLong();
+        int[] checksums = new int[frame.remaining() / 4];
+        for (int i = 0; i < checksums.length; i++) {
+            checksums[i] = frame.getInt();
+        }
+
+        // helper connections start in the root, so give them an absolute path
+        String path = remote;
+        if (streams > 1 && !remote.startsWith("/")) {
+            io.writeLine("pwd");
+            String pwd = io.readLine();
+            if (pwd == null || !pwd.startsWith("SUCCESS")) {
+                System.out.println(pwd);
+                return;
+            }
+            path = pwd.substring(pwd.indexOf('/')) + remote;
+        }
+
+        Path part = local.resolveSibling(local.getFileName() + ".part");
+        Queue<Integer> missing = new ConcurrentLinkedQueue<>();
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                 StandardOpenOption.WRITE)) {
+            boolean resuming = file.size() > 0;
+            if (file.size() > size) file.truncate(size);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            for (int chunk = 0; chunk < checksums.length; chunk++) {
+                if (!resuming || !verify(file, chunk, size, checksums[chunk], buffer)) missing.add(chunk);
+            }
+            if (resuming) {
+                System.out.println("Resuming: " + (checksums.length - missing.size()) + " of " + checksums.length
+                                   + " chunks already present.");
+            }
+            if (file.size() < size) {
+                file.write(ByteBuffer.allocate(1), size - 1); // preallocate to the final length
+            }
+
+            List<Thread> helpers = new ArrayList<>();
+            List<IOException> failures = new CopyOnWriteArrayList<>();
+            String chunkPath = path;
+            for (int i = 1; i < Math.min(streams, missing.size()); i++) {
+                Thread helper = new Thread(() -> {
+                    try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, port))) {
+                        ChannelIO helperIO = connect(channel);
+                        fetchChunks(helperIO, chunkPath, file, size, checksums, missing);
+                        helperIO.writeLine("exit");
+                        helperIO.readLine();
+                    } catch (IOException e) {
+                        failures.add(e);
+                    }
+                }, "download-" + i);
+                helper.start();
+                helpers.add(helper);
+            }
+            try {
+                fetchChunks(io, chunkPath, file, size, checksums, missing);
+            } catch (IOException e) {
+                failures.add(e);
+            }
+            for (Thread helper : helpers) {
+                try {
+                    helper.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failures.add(new InterruptedIOException("Interrupted while downloading."));
+                }
+            }
+            if (!failures.isEmpty() || !missing.isEmpty()) {
+                String reason = failures.isEmpty() ? "chunks left unfetched" : failures.get(0).getMessage();
+                System.out.println("Download incomplete (" + reason + "); run get again to resume.");
+                return;
+            }
+            file.force(false);
+        }
+        Files.move(part, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Saved " + size + " bytes to " + local + " (" + checksums.length + " chunks verified, "
+                           + streams + (streams == 1 ? " stream)." : " streams)."));
+    }
+
+    // Takes chunk numbers from the shared queue until it is empty. A chunk
+    // whose checksum does not match is requested again; a chunk that could
+    // not be completed goes back to the queue for another connection.
+    private static void fetchChunks(ChannelIO io, String path, FileChannel file, long size, int[] checksums,
+                                    Queue<Integer> missing) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        CRC32C crc = new CRC32C();
+        Integer chunk;
+        while ((chunk = missing.poll()) != null) {
+            try {
+                long position = (long) chunk * CHUNK_SIZE;
+                int length = (int) Math.min(CHUNK_SIZE, size - position);
+                for (int attempt = 1; ; attempt++) {
+                    io.writeLine("get " + path + " " + position + " " + length);
+                    String status = io.readLine();
+                    if (status == null) throw new EOFException("Connection closed by server.");
+                    if (!status.startsWith("SUCCESS")) throw new IOException(status);
+                    if (io.readLong() != length) throw new IOException("File changed on the server.");
+                    buffer.clear().limit(length);
+                    io.readFully(buffer);
+                    buffer.flip();
+                    crc.reset();
+                    crc.update(buffer);
+                    if ((int) crc.getValue() == checksums[chunk]) break;
+                    if (attempt == MAX_ATTEMPTS) {
+                        throw new IOException("Chunk " + chunk + " failed verification " + MAX_ATTEMPTS + " times.");
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    file.write(buffer, position + buffer.position());
+                }
+            } catch (IOException e) {
+                missing.add(chunk);
+                throw e;
+            }
+        }
+    }
+
+    private static boolean verify(FileChannel file, int chunk, long size, int checksum, ByteBuffer buffer)
+            throws IOException {
+        long position = (long) chunk * CHUNK_SIZE;
+        int length = (int) Math.min(CHUNK_SIZE, size - position);
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) return false;
+        }
+        buffer.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(buffer);
+        return (int) crc.getValue() == checksum;
+    }
+}
@@ -1,12 +1,54 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+// Interactive client for FileServerUDP. Commands go out as REQUESTs with a
+// message id and replies come back in fragments (see UdpMessages), so a
+// listing of any size arrives whole. Missing fragments are NACKed, and a
+// request with no reply at all is sent again, which the server answers
+// from the reply it already sent rather than running the command twice.
+// 'get' downloads over UdpTransfer: chunks are written where they belong
+// in local.part and acknowledged as they arrive, and the file is renamed
+// into place once complete.
+// With a script file the commands are sent as BATCHes, as many as fit one
+// datagram, and their replies come back together; 'get' runs on its own.
 public class FileClientUDP {
+    private static final int REPLY_TIMEOUT_MILLIS = 1000;
+    private static final int FRAGMENT_TIMEOUT_MILLIS = 50; // silence in the middle of a reply before a NACK
+    private static final int MAX_ATTEMPTS = 3; // timeouts in a row without progress
+    private static final int STALL_MILLIS = 10_000; // no chunk for this long fails a download
+    private static final int ACK_TIMEOUT_MILLIS = 200; // repeat the ACK when no chunk arrives
+    private static final int ACK_DELAY_MILLIS = 2; // an in-order chunk waits this long for a second one
+    private static final int LINGER_MILLIS = 200; // answers retransmissions after the last chunk
+    private static final int RECEIVE_BUFFER = 4 * 1024 * 1024;
+    private static final Pattern TRANSFER = Pattern.compile("Transfer (\\d+): (\\d+) bytes in (\\d+) chunks");
+
+    private final DatagramSocket socket;
+    private final InetAddress address;
+    private final int port;
+    private final UdpTransfer.Loss loss = UdpTransfer.Loss.fromProperties();
+    private final byte[] receiveBuffer = new byte[65535]; // max UDP buffer size
+    private final ByteBuffer control = ByteBuffer.allocate(10 + 4 * UdpMessages.MAX_NACKED);
+    private int nextMessage = 1;
+
+    private FileClientUDP(DatagramSocket socket, InetAddress address, int port) {
+        this.socket = socket;
+        this.address = address;
+        this.port = port;
+    }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java FileClientUDP <server_IP_address> <port>");
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java FileClientUDP <server_IP_address> <port> [script_file]");
             return;
         }
 
@@ -20,32 +62,36 @@ public class FileClientUDP {
         }
 
         try (DatagramSocket socket = new DatagramSocket()) {
-            InetAddress address = InetAddress.getByName(hostname);
+            socket.setReceiveBufferSize(RECEIVE_BUFFER);
+            FileClientUDP client = new FileClientUDP(socket, InetAddress.getByName(hostname), port);
+            if (args.length == 3) {
+                client.runScript(Paths.get(args[2]));
+                return;
+            }
             Scanner scanner = new Scanner(System.in);
-            byte[] receiveBuffer = new byte[65535]; // max UDP buffer size
 
-            System.out.println("UDP Client started. Enter commands (dir, cd .., exit):");
+            System.out.println("UDP Client started" + (client.loss.active() ? " (simulating packet loss)" : "")
+                               + ". Enter commands (dir [--page N], cd .., cd path, mkdir name, copy [-r] source dest, "
+                               + "pwd, jobs, status id, get remote [local], exit):");
             String userInput;
 
             while (true) {
                 System.out.print("> ");
-                userInput = scanner.nextLine();
-                
-                if (userInput.trim().isEmpty()) continue;
-                
-                byte[] sendData = userInput.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, address, port);
-                socket.send(sendPacket);
-
-                if (userInput.trim().equalsIgnoreCase("exit")) {
-                    break;
-                }
+                if (!scanner.hasNextLine()) break;
+                userInput = scanner.nextLine().trim();
 
-                DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                socket.receive(receivePacket);
+                if (userInput.isEmpty()) continue;
 
-                String response = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                System.out.println(response);
+                String[] parts = userInput.split("\\s+");
+                if (parts[0].equalsIgnoreCase("exit")) {
+                    client.send(client.request(userInput, client.nextMessage++));
+                    break;
+                }
+                if (parts[0].equalsIgnoreCase("get")) {
+                    client.get(parts);
+                    continue;
+                }
+                System.out.println(client.exchange(userInput));
             }
 
         } catch (UnknownHostException e) {
@@ -54,4 +100,215 @@ public class FileClientUDP {
             System.err.println("I/O Error: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private void get(String[] parts) throws IOException {
+        if (parts.length < 2 || parts.length > 3) {
+            System.out.println("Usage: get remote [local]");
+            return;
+        }
+        Path local = Paths.get(parts.length > 2 ? parts[2] : Paths.get(parts[1]).getFileName().toString());
+        download("get " + parts[1], local);
+    }
+
+    // Runs every line of the script ('#' starts a comment), packing the
+    // commands between two 'get's into as few datagrams as possible
+    private void runScript(Path script) throws IOException {
+        List<String> commands = new ArrayList<>();
+        for (String line : Files.readAllLines(script)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            if (trimmed.equalsIgnoreCase("exit")) break;
+            commands.add(trimmed);
+        }
+        long start = System.nanoTime();
+        List<String> batch = new ArrayList<>();
+        List<byte[]> encoded = new ArrayList<>();
+        int bytes = 0;
+        for (String command : commands) {
+            String[] parts = command.split("\\s+");
+            byte[] data = command.getBytes(StandardCharsets.UTF_8);
+            boolean alone = parts[0].equalsIgnoreCase("get") || 2 + data.length > UdpMessages.MAX_BATCH_BYTES;
+            if (!batch.isEmpty() && (alone || batch.size() == UdpMessages.MAX_BATCH
+                                     || bytes + 2 + data.length > UdpMessages.MAX_BATCH_BYTES)) {
+                runBatch(batch, encoded);
+                batch.clear();
+                encoded.clear();
+                bytes = 0;
+            }
+            if (alone) {
+                System.out.println("> " + command);
+                if (parts[0].equalsIgnoreCase("get")) {
+                    get(parts);
+                } else {
+                    System.out.println(exchange(command));
+                }
+                continue;
+            }
+            batch.add(command);
+            encoded.add(data);
+            bytes += 2 + data.length;
+        }
+        if (!batch.isEmpty()) runBatch(batch, encoded);
+        send(request("exit", nextMessage++));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%d commands in %.3f s (%.0f commands/s)",
+                                         commands.size(), seconds, commands.size() / seconds));
+    }
+
+    private void runBatch(List<String> commands, List<byte[]> encoded) throws IOException {
+        int message = nextMessage++;
+        ByteBuffer request = UdpMessages.batch(ByteBuffer.allocate(6 + UdpMessages.MAX_BATCH_BYTES), message, encoded);
+        UdpMessages.Reassembly reply = exchange(message, request);
+        List<String> replies = reply.complete() ? UdpMessages.replies(reply.bytes()) : List.of();
+        for (int i = 0; i < commands.size(); i++) {
+            System.out.println("> " + commands.get(i));
+            System.out.println(i < replies.size() ? replies.get(i) : reply.complete() ? "ERROR: No reply in the batch."
+                                                                                      : failure(reply));
+        }
+    }
+
+    private void send(ByteBuffer packet) throws IOException {
+        send(packet.array(), packet.limit());
+    }
+
+    private void send(byte[] data, int length) throws IOException {
+        if (loss.drop()) return;
+        socket.send(new DatagramPacket(data, length, address, port));
+    }
+
+    private ByteBuffer request(String command, int message) {
+        byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+        return UdpMessages.request(ByteBuffer.allocate(6 + bytes.length), message, bytes);
+    }
+
+    private String exchange(String command) throws IOException {
+        int message = nextMessage++;
+        UdpMessages.Reassembly reply = exchange(message, request(command, message));
+        return reply.complete() ? new String(reply.bytes(), StandardCharsets.UTF_8) : failure(reply);
+    }
+
+    private static String failure(UdpMessages.Reassembly reply) {
+        if (reply.isGone()) return "ERROR: The server no longer has this reply, run the command again.";
+        return reply.started() ? "ERROR: Reply incomplete, " + reply.received() + " fragments arrived."
+                               : "ERROR: No reply from the server after " + MAX_ATTEMPTS + " attempts.";
+    }
+
+    // The reply to one REQUEST or BATCH, incomplete if the server went
+    // quiet; fragments of other messages and chunks still arriving from an
+    // earlier 'get' are skipped
+    private UdpMessages.Reassembly exchange(int message, ByteBuffer request) throws IOException {
+        UdpMessages.Reassembly reply = new UdpMessages.Reassembly(message);
+        ByteBuffer data = ByteBuffer.wrap(receiveBuffer);
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        send(request);
+        int timeouts = 0;
+        int progress = 0;
+        while (!reply.complete()) {
+            socket.setSoTimeout(reply.started() ? FRAGMENT_TIMEOUT_MILLIS : REPLY_TIMEOUT_MILLIS);
+            try {
+                packet.setLength(receiveBuffer.length);
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                if (reply.received() > progress) {
+                    progress = reply.received();
+                    timeouts = 0;
+                }
+                if (++timeouts >= MAX_ATTEMPTS) return reply;
+                send(reply.started() ? reply.nack(control) : request);
+                continue;
+            }
+            if (packet.getLength() < 6 || receiveBuffer[0] != UdpTransfer.MARK) continue;
+            data.clear().limit(packet.getLength()).position(2);
+            if (data.getInt() != message) continue;
+            if (receiveBuffer[1] == UdpMessages.GONE) {
+                reply.gone();
+                return reply;
+            }
+            if (receiveBuffer[1] == UdpMessages.REPLY && packet.getLength() >= UdpMessages.HEADER) reply.add(data);
+        }
+        return reply;
+    }
+
+    private void download(String command, Path local) throws IOException {
+        String status = exchange(command);
+        System.out.println(status);
+        Matcher matcher = TRANSFER.matcher(status);
+        if (!status.startsWith("SUCCESS") || !matcher.find()) return;
+        int id = Integer.parseInt(matcher.group(1));
+        long length = Long.parseLong(matcher.group(2));
+
+        Path part = Paths.get(local + ".part");
+        long start = System.nanoTime();
+        UdpTransfer.Receiver receiver;
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            receiver = new UdpTransfer.Receiver(id, length, file);
+            if (!receive(receiver)) {
+                ByteBuffer cancel = ByteBuffer.allocate(6).put(UdpTransfer.MARK).put(UdpTransfer.CANCEL).putInt(id);
+                send(cancel.array(), cancel.position());
+                System.out.println("ERROR: Transfer stalled, no data for " + STALL_MILLIS / 1000 + " s.");
+                return;
+            }
+        }
+        Files.move(part, local, StandardCopyOption.REPLACE_EXISTING);
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "SUCCESS: Saved %s: %d bytes in %.2f s (%.1f MB/s), %d duplicate chunks.",
+                                         local, length, seconds, length / seconds / 1e6, receiver.duplicates()));
+    }
+
+    // false if the server went quiet before the file was complete
+    private boolean receive(UdpTransfer.Receiver receiver) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(receiveBuffer);
+        ByteBuffer ack = ByteBuffer.allocate(UdpTransfer.MAX_ACK);
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        long lastData = System.nanoTime();
+        long pendingEcho = 0; // timestamp of a chunk not acknowledged yet
+        boolean complete = receiver.complete();
+        long lingerUntil = complete ? System.nanoTime() : Long.MAX_VALUE;
+        if (complete) {
+            ack(receiver, ack, 0); // empty file: nothing will come, so say so now
+        }
+        while (true) {
+            long now = System.nanoTime();
+            if (complete && now >= lingerUntil) return true;
+            socket.setSoTimeout(complete ? (int) Math.max(1, (lingerUntil - now) / 1_000_000)
+                                : pendingEcho != 0 ? ACK_DELAY_MILLIS : ACK_TIMEOUT_MILLIS);
+            try {
+                packet.setLength(receiveBuffer.length);
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                if (complete) return true;
+                if (pendingEcho != 0) {
+                    ack(receiver, ack, pendingEcho);
+                    pendingEcho = 0;
+                    continue;
+                }
+                if (System.nanoTime() - lastData > STALL_MILLIS * 1_000_000L) return false;
+                ack(receiver, ack, 0); // in case the last ones were lost
+                continue;
+            }
+            if (packet.getLength() < UdpTransfer.DATA_HEADER || receiveBuffer[0] != UdpTransfer.MARK
+                || receiveBuffer[1] != UdpTransfer.DATA) continue;
+            data.clear().limit(packet.getLength()).position(2);
+            if (data.getInt() != receiver.id) continue;
+            lastData = System.nanoTime();
+            long timestamp = receiver.accept(data);
+            // like TCP: every second chunk, and at once when something is missing
+            if (pendingEcho == 0 && receiver.inOrder() && !receiver.complete()) {
+                pendingEcho = timestamp;
+                continue;
+            }
+            ack(receiver, ack, timestamp);
+            pendingEcho = 0;
+            if (!complete && receiver.complete()) {
+                complete = true;
+                lingerUntil = System.nanoTime() + LINGER_MILLIS * 1_000_000L;
+            }
+        }
+    }
+
+    private void ack(UdpTransfer.Receiver receiver, ByteBuffer ack, long echo) throws IOException {
+        receiver.ack(ack, echo);
+        send(ack.array(), ack.limit());
+    }
+}
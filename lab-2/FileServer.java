@@ -1,185 +1,460 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.stream.Collectors;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
+// Blocking file server. The virtual root is shared and immutable; all
+// per-client state lives in a FileSession. In 'virtual' mode (default)
+// every connection gets its own virtual thread, so thousands of sessions
+// run in parallel with plain blocking code. 'sequential' serves one
+// client at a time, as the original server did.
+// Connections are blocking SocketChannels so that 'get' and 'put' can move
+// file bodies with transferTo/transferFrom instead of copying via the heap.
 public class FileServer {
-    private static Path rootDirectory; 
-    private Path currentDirectory;
+    private static final int LISTING_CACHE_SIZE = 1024; // directories
+    private static final int COPY_CONCURRENCY = 2; // background copies running at once
+    private static final int COPY_QUEUE_LIMIT = 256; // waiting copies before 'copy' is refused
+    private static final int TREE_COPY_PARALLELISM = 4; // files copied at once by 'copy -r'
+    private static final int SIGNATURE_CACHE_SIZE = 256; // files whose 'sync' signatures are kept
+    private static final int SIGNATURE_PARALLELISM = 4; // threads computing signatures
+    private static final String INDEX_FILE = "fileserver.index"; // saved path index, -Dindex.file overrides
+    private static final String STATS_FILE = "fileserver-stats.jsonl"; // -Dstats.file overrides
+    private static final long STATS_INTERVAL = 60; // seconds between dumps, -Dstats.interval overrides, 0 = off
+    private static final int MAX_IN_FLIGHT = 64; // protocol 2 requests running per connection
+    private static final int MAX_COMMAND_LENGTH = 8192;
+    private static final int PUSH_ID = -1; // protocol 2 frames the server sends unasked
+    // protocol 2 commands that may run concurrently with each other
+    private static final Set<String> READ_ONLY = Set.of("dir", "pwd", "get", "sum", "sig", "find", "jobs", "status", "stats");
+    private final Path rootDirectory;
+    private final ListingCache listings = new ListingCache(LISTING_CACHE_SIZE);
+    private final CopyJobs copies = new CopyJobs(listings, COPY_CONCURRENCY, COPY_QUEUE_LIMIT, TREE_COPY_PARALLELISM);
+    private final CommandStats stats = new CommandStats();
+    private final BlockSignatures signatures = new BlockSignatures(SIGNATURE_CACHE_SIZE, SIGNATURE_PARALLELISM);
+    private final PathIndex index;
+    private final boolean virtualThreads;
 
-    public FileServer(String rootDir) throws IOException {
+    public FileServer(String rootDir, boolean virtualThreads) throws IOException {
         this.rootDirectory = Paths.get(rootDir).toAbsolutePath().normalize();
         if (!Files.isDirectory(rootDirectory)) {
             throw new IOException("The specified root directory is not valid.");
         }
-        this.currentDirectory = this.rootDirectory;
+        this.index = new PathIndex(rootDirectory, Paths.get(System.getProperty("index.file", INDEX_FILE)));
+        this.virtualThreads = virtualThreads;
     }
 
     public void start(int port) {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started on port " + port + ". Waiting for connections...");
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(port), 1024);
+            index.start();
+            startStats();
+            AsyncLog.info("Server started on port " + port + " (" + (virtualThreads ? "virtual thread per connection" : "sequential")
+                          + "). Waiting for connections...");
             while (true) {
-                try (Socket clientSocket = serverSocket.accept();
-                     BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                     PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-                    System.out.println("Client connected from: " + clientSocket.getInetAddress());
-                    handleClient(in, out);
-                    System.out.println("Client disconnected.");
-                    this.currentDirectory = this.rootDirectory;
-                } catch (IOException e) {
-                    System.err.println("Error handling client: " + e.getMessage());
+                SocketChannel clientSocket = serverSocket.accept();
+                if (virtualThreads) {
+                    Thread.ofVirtual().name("fs-session").start(() -> handleConnection(clientSocket));
+                } else {
+                    handleConnection(clientSocket);
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error starting server: " + e.getMessage());
+            AsyncLog.error("Error starting server: " + e.getMessage());
         }
     }
 
-    private void handleClient(BufferedReader in, PrintWriter out) throws IOException {
+    // JMX bean and periodic dumps of the per-command statistics
+    private void startStats() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName("FileServer:type=CommandStats"));
+        } catch (JMException e) {
+            AsyncLog.warn("Command statistics are not available over JMX: " + e.getMessage());
+        }
+        long interval = Long.getLong("stats.interval", STATS_INTERVAL);
+        if (interval > 0) {
+            stats.startDumps(Paths.get(System.getProperty("stats.file", STATS_FILE)), interval);
+        }
+    }
+
+    private void handleConnection(SocketChannel clientSocket) {
+        try (SocketChannel channel = clientSocket) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            AsyncLog.info("Client connected from: " + channel.getRemoteAddress());
+            ChannelIO io = new ChannelIO(channel);
+            try {
+                handleClient(new FileSession(rootDirectory, listings, copies, index, signatures), io);
+            } finally {
+                AsyncLog.info("Client disconnected" + (io.compressed() ? " (deflate): " : ": ") + io.traffic());
+            }
+        } catch (IOException e) {
+            AsyncLog.error("Error handling client: " + e.getMessage());
+        }
+    }
+
+    private void handleClient(FileSession session, ChannelIO io) throws IOException {
         String inputLine;
-        while ((inputLine = in.readLine()) != null) {
-            System.out.println("Command received: " + inputLine);
-            String response = executeCommand(inputLine);
-            out.println(response);
-            if (inputLine.trim().equalsIgnoreCase("exit")) {
+        while ((inputLine = io.readLine()) != null) {
+            AsyncLog.debug().append("Command received: ").append(inputLine).log();
+            long start = System.nanoTime();
+            long bytesBefore = io.bytesSent() + io.bytesReceived();
+            String[] parts = inputLine.trim().split("\\s+");
+            String command = parts[0].toLowerCase();
+            String argument = parts.length > 1 ? parts[1] : null;
+            String status;
+            if (command.equals("get")) {
+                status = sendFile(session, inputLine, io);
+            } else if (command.equals("sum") || command.equals("sig")) {
+                FileSession.Checksums checksums = command.equals("sum")
+                        ? session.checksums(inputLine) : session.signatures(inputLine);
+                status = checksums.status;
+                if (checksums.frame == null) {
+                    io.writeLine(checksums.status);
+                } else {
+                    io.appendLine(checksums.status);
+                    io.writeFrame(checksums.frame);
+                }
+            } else if (command.equals("dir") && parts.length > 1) {
+                status = session.listPage(inputLine, FileSession.PAGE_SIZE, io::appendLine);
+                io.writeLine(status);
+            } else if (command.equals("put") || command.equals("sync")) {
+                status = receiveFile(session, command, argument, io);
+                io.writeLine(status);
+            } else if (command.equals("proto")) {
+                if (parts.length == 2 && parts[1].equals("2")) {
+                    io.writeLine("SUCCESS: Protocol 2.");
+                    handleFramed(session, io);
+                    return;
+                }
+                io.writeLine("ERROR: Unsupported protocol version.");
+                continue;
+            } else if (command.equals("compress")) {
+                // handshake; the reply itself still goes out uncompressed
+                if (io.compressed()) {
+                    io.writeLine("ERROR: Compression is already on.");
+                } else if (parts.length == 2 && parts[1].equalsIgnoreCase("deflate")) {
+                    io.writeLine("SUCCESS: Compression deflate.");
+                    io.enableCompression();
+                } else {
+                    io.writeLine("ERROR: Unsupported compression, expected 'compress deflate'.");
+                }
+                continue;
+            } else {
+                status = command.equals("stats") ? stats.report() : session.execute(inputLine);
+                io.writeLine(status);
+            }
+            stats.record(command, System.nanoTime() - start, io.bytesSent() + io.bytesReceived() - bytesBefore, status);
+            if (command.equals("exit")) {
                 break;
             }
         }
     }
 
-    private String executeCommand(String commandLine) {
-        String[] parts = commandLine.trim().split("\\s+");
-        String command = parts[0].toLowerCase();
-        try {
-            switch (command) {
-                case "dir":
-                    return handleDir();
-                case "cd":
-                    if (parts.length < 2) return "ERROR: Invalid 'cd' command format.";
-                    String target = parts[1];
-                    if (target.equals("..")) {
-                        return handleCdParent();
-                    } else {
-                        return handleCdPath(target);
-                    }
-                case "mkdir":
-                    if (parts.length < 2) return "ERROR: Invalid 'mkdir' command format.";
-                    return handleMkdir(parts[1]);
-                case "copy":
-                    if (parts.length < 3) return "ERROR: Invalid 'copy' command format. Usage: copy source/file destination";
-                    return handleCopy(parts[1], parts[2]);
-                case "exit":
-                    return "SUCCESS: Disconnecting.";
-                default:
-                    return "ERROR: Unknown command.";
+    // status line, then the file as one length-prefixed frame
+    private String sendFile(FileSession session, String commandLine, ChannelIO io) throws IOException {
+        try (FileSession.Download download = session.openDownload(commandLine)) {
+            if (download.channel == null) {
+                io.writeLine(download.status);
+            } else {
+                io.appendLine(download.status);
+                io.writeLong(download.length);
+                io.sendFile(download.channel, download.position, download.length, download.compressible);
             }
-        } catch (Exception e) {
+            return download.status;
+        }
+    }
+
+    // A 'put' or 'sync' line is always followed by a frame, even if it will be
+    // rejected. For 'sync' the frame is a delta, applied once it is complete.
+    private String receiveFile(FileSession session, String command, String name, ChannelIO io) throws IOException {
+        long length = io.readLong();
+        if (length < 0) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        Path received;
+        try {
+            received = session.newUploadFile();
+        } catch (IOException e) {
+            io.skip(length);
             return "ERROR: " + e.getMessage();
         }
+        try (FileChannel file = FileChannel.open(received, StandardOpenOption.WRITE)) {
+            io.receive(file, 0, length);
+        } catch (IOException e) {
+            Files.deleteIfExists(received);
+            throw e;
+        }
+        return command.equals("sync")
+                ? session.completeSync(name, received)
+                : session.completeUpload(name, received, length);
     }
 
-    private String handleDir() throws IOException {
-        String relativePath = rootDirectory.relativize(currentDirectory).toString();
+    // Protocol 2. Commands that only read (READ_ONLY) run concurrently on
+    // virtual threads and reply as soon as they finish, so a pipelining
+    // client is not held up by one slow request. Every other command waits
+    // for all earlier requests, runs alone and in order, and only then are
+    // later requests read, so a cd or mkdir is seen by everything sent
+    // after it. Reply frames are written under the ChannelIO lock.
+    private void handleFramed(FileSession session, ChannelIO io) throws IOException {
+        Semaphore window = new Semaphore(MAX_IN_FLIGHT);
+        ListingPush push = new ListingPush(io);
+        try (ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (!io.atEnd()) {
+                int id = io.readInt();
+                int length = io.readInt();
+                if (length < 0 || length > MAX_COMMAND_LENGTH) {
+                    throw new IOException("Invalid request length " + length);
+                }
+                String commandLine = new String(io.readBytes(length), StandardCharsets.UTF_8);
+                long start = System.nanoTime(); // latency includes waiting for the window
+                AsyncLog.debug().append("Command received: #").append(id).append(' ').append(commandLine).log();
+                String[] parts = commandLine.trim().split("\\s+");
+                String command = parts[0].toLowerCase();
 
-        String fileList = Files.list(currentDirectory)
-                .map(path -> {
-                    String name = path.getFileName().toString();
-                    return Files.isDirectory(path) ? "[DIR] " + name : "[FILE] " + name;
-                })
-                .collect(Collectors.joining("\n"));
+                if (READ_ONLY.contains(command)) {
+                    window.acquireUninterruptibly();
+                    requests.execute(() -> {
+                        try {
+                            try {
+                                respond(session, io, push, id, command, commandLine, start);
+                            } catch (RuntimeException e) {
+                                // the client still waits for a reply to this id
+                                AsyncLog.error("Command failed: #" + id + " " + commandLine, e);
+                                replyError(io, id, "ERROR: " + e.getMessage());
+                            }
+                        } catch (IOException e) {
+                            closeQuietly(io.channel()); // the reader fails next
+                        } finally {
+                            window.release();
+                        }
+                    });
+                    continue;
+                }
 
-        return "SUCCESS: Current directory: /" + (relativePath.isEmpty() ? "" : relativePath + "/") + "\n" + fileList;
+                window.acquireUninterruptibly(MAX_IN_FLIGHT);
+                try {
+                    // nothing else is in flight, so the byte counters belong to this command
+                    long bytesBefore = io.bytesSent() + io.bytesReceived();
+                    String status;
+                    if (command.equals("put") || command.equals("sync")) {
+                        status = receiveFile(session, command, parts.length > 1 ? parts[1] : null, io);
+                    } else if (command.equals("watch")) {
+                        status = push.start();
+                    } else {
+                        status = session.execute(commandLine);
+                    }
+                    io.writeLock().lock();
+                    try {
+                        push.flush(); // what this command changed is reported before its reply
+                        io.appendReply(id, status, 0);
+                        io.flush();
+                    } finally {
+                        io.writeLock().unlock();
+                    }
+                    stats.record(command, System.nanoTime() - start, io.bytesSent() + io.bytesReceived() - bytesBefore, status);
+                } finally {
+                    window.release(MAX_IN_FLIGHT);
+                }
+                if (command.equals("exit")) {
+                    break;
+                }
+            }
+        } finally {
+            push.stop();
+        }
     }
 
-    private String handleCdParent() {
-        if (currentDirectory.equals(rootDirectory)) {
-            return "ERROR: Cannot navigate above the virtual root directory.";
+    // Runs concurrently with other requests; the reply is written under the
+    // lock, so the bytes sent meanwhile are this reply's
+    private void respond(FileSession session, ChannelIO io, ListingPush push, int id, String command, String commandLine,
+                         long start) throws IOException {
+        if (command.equals("get")) {
+            try (FileSession.Download download = session.openDownload(commandLine)) {
+                long sent;
+                io.writeLock().lock();
+                try {
+                    long before = io.bytesSent();
+                    io.appendReply(id, download.status, download.channel == null ? 0 : download.length);
+                    if (download.channel != null) {
+                        io.sendFile(download.channel, download.position, download.length, download.compressible);
+                    }
+                    io.flush();
+                    sent = io.bytesSent() - before;
+                } finally {
+                    io.writeLock().unlock();
+                }
+                stats.record(command, System.nanoTime() - start, sent, download.status);
+            }
+            return;
         }
-        Path parent = currentDirectory.getParent();
-        if (parent != null) {
-            currentDirectory = parent;
-            return "SUCCESS: Current directory changed to parent.";
+        byte[] body = new byte[0];
+        String status;
+        // a plain 'dir' is cached by a watching client
+        Path listed = command.equals("dir") && commandLine.trim().split("\\s+").length == 1
+                ? session.getCurrentDirectory() : null;
+        if (listed != null) {
+            push.watch(listed);
         }
-        return "ERROR: Cannot change to parent directory.";
-    }
-
-    private String handleMkdir(String folderName) throws IOException {
-        Path newPath = currentDirectory.resolve(folderName).normalize();
-        
-        if (!newPath.startsWith(rootDirectory)) {
-            return "ERROR: Operation attempted outside the virtual root directory.";
+        if (command.equals("sum") || command.equals("sig")) {
+            FileSession.Checksums checksums = command.equals("sum")
+                    ? session.checksums(commandLine) : session.signatures(commandLine);
+            status = checksums.status;
+            if (checksums.frame != null) body = checksums.frame;
+        } else {
+            status = command.equals("stats") ? stats.report() : session.execute(commandLine);
         }
-
-        if (Files.exists(newPath)) {
-            return "ERROR: Directory '" + folderName + "' already exists.";
+        long sent;
+        io.writeLock().lock();
+        try {
+            long before = io.bytesSent();
+            io.appendReply(id, status, body.length);
+            io.appendBytes(body);
+            if (listed != null) {
+                push.listed(listed);
+            }
+            io.flush();
+            sent = io.bytesSent() - before;
+        } finally {
+            io.writeLock().unlock();
         }
-
-        Files.createDirectory(newPath);
-        return "SUCCESS: Directory '" + folderName + "' created.";
+        stats.record(command, System.nanoTime() - start, sent, status);
     }
 
-    private String handleCdPath(String relativeOrAbsolutePath) throws IOException {
-        Path newPath;
+    // Protocol 2 'watch': the client caches plain 'dir' replies, and for
+    // every directory it has listed this pushes one frame with id PUSH_ID
+    // and status "CHANGED: /path/" once the listing may be stale (see
+    // ListingCache listeners). The pusher thread sends changes made from
+    // outside; a command that changes something itself has them flushed
+    // before its reply, so the client never answers from a stale listing.
+    private final class ListingPush implements Consumer<Path> {
+        private final ChannelIO io;
+        private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+        private final Queue<Path> changed = new ConcurrentLinkedQueue<>();
+        private final Semaphore signal = new Semaphore(0);
+        private volatile boolean active;
+        private Thread pusher;
 
-        if (relativeOrAbsolutePath.startsWith("/")) {
-            String pathStr = relativeOrAbsolutePath.substring(1); 
-            newPath = rootDirectory.resolve(pathStr).normalize();
-        } else {
-            newPath = currentDirectory.resolve(relativeOrAbsolutePath).normalize();
+        ListingPush(ChannelIO io) {
+            this.io = io;
         }
 
-        if (!newPath.startsWith(rootDirectory)) {
-            return "ERROR: Specified path '" + relativeOrAbsolutePath + "' is outside the virtual root directory.";
+        String start() {
+            if (active) return "ERROR: Already watching.";
+            if (!listings.watching()) return "ERROR: Directory watching is not available on this server.";
+            active = true;
+            listings.addListener(this);
+            pusher = Thread.ofVirtual().name("fs-push").start(this::run);
+            return "SUCCESS: Watching listed directories.";
         }
 
-        if (Files.isDirectory(newPath)) {
-            currentDirectory = newPath;
-            return "SUCCESS: Current directory changed to: " + rootDirectory.relativize(currentDirectory).toString();
-        } else {
-            return "ERROR: Specified path '" + relativeOrAbsolutePath + "' is not a valid directory or does not exist.";
+        void stop() {
+            if (!active) return;
+            active = false;
+            listings.removeListener(this);
+            pusher.interrupt();
+        }
+
+        // runs under the ListingCache lock
+        @Override
+        public void accept(Path directory) {
+            if (watched.remove(directory)) {
+                changed.add(directory);
+                signal.release();
+            }
         }
-    }
 
-    private String handleCopy(String sourcePathStr, String destPathStr) throws IOException {
-        Path sourcePath = currentDirectory.resolve(sourcePathStr).normalize();
-        Path destDir = currentDirectory.resolve(destPathStr).normalize();
+        // before the listing is read, so no change after the read is missed
+        void watch(Path directory) {
+            if (active) watched.add(directory);
+        }
 
-        if (!sourcePath.startsWith(rootDirectory) || !destDir.startsWith(rootDirectory)) {
-            return "ERROR: Operation attempted outside the virtual root directory.";
+        // after the reply, under the io lock: a listing the server did not
+        // cache is not watched, so it is reported stale right away
+        void listed(Path directory) throws IOException {
+            if (active && !listings.isCached(directory)) {
+                accept(directory);
+            }
+            flush();
         }
-        
-        if (!Files.isRegularFile(sourcePath)) {
-            return "ERROR: Source is not a valid file or does not exist: " + sourcePathStr;
+
+        // the caller holds the io lock
+        void flush() throws IOException {
+            Path directory;
+            while ((directory = changed.poll()) != null) {
+                String relative = rootDirectory.relativize(directory).toString();
+                io.appendReply(PUSH_ID, "CHANGED: /" + (relative.isEmpty() ? "" : relative + "/"), 0);
+            }
         }
 
-        if (!Files.isDirectory(destDir)) {
-            return "ERROR: Destination is not a valid directory or does not exist: " + destPathStr;
+        private void run() {
+            try {
+                while (true) {
+                    signal.acquire();
+                    io.writeLock().lock();
+                    try {
+                        flush();
+                        io.flush();
+                    } finally {
+                        io.writeLock().unlock();
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                // connection closed, or stop()
+            }
         }
+    }
 
-        String fileName = sourcePath.getFileName().toString();
-        Path finalDestPath = destDir.resolve(fileName);
+    private static void replyError(ChannelIO io, int id, String status) throws IOException {
+        io.writeLock().lock();
+        try {
+            io.appendReply(id, status, 0);
+            io.flush();
+        } finally {
+            io.writeLock().unlock();
+        }
+    }
 
-        Files.copy(sourcePath, finalDestPath, StandardCopyOption.REPLACE_EXISTING);
-        
-        return "SUCCESS: File '" + fileName + "' copied from " + sourcePathStr + " to " + destPathStr;
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
     }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java FileServer <port> <root_folder>");
+        if (args.length < 2 || args.length > 3) {
+            AsyncLog.info("Usage: java FileServer <port> <root_folder> [virtual|sequential]");
+            return;
+        }
+
+        String mode = args.length == 3 ? args[2].toLowerCase() : "virtual";
+        if (!mode.equals("virtual") && !mode.equals("sequential")) {
+            AsyncLog.error("Unknown mode '" + args[2] + "', expected 'virtual' or 'sequential'.");
             return;
         }
 
         try {
             int port = Integer.parseInt(args[0]);
             String rootDir = args[1];
-            FileServer server = new FileServer(rootDir);
+            FileServer server = new FileServer(rootDir, mode.equals("virtual"));
             server.start(port);
         } catch (NumberFormatException e) {
-            System.err.println("The specified port is not a valid number.");
+            AsyncLog.error("The specified port is not a valid number.");
         } catch (IOException e) {
-            System.err.println("Error initializing the server: " + e.getMessage());
+            AsyncLog.error("Error initializing the server: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,582 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Non-blocking variant of FileServer: a few event-loop threads multiplex
+// all connections on Selectors, while the (blocking) filesystem work of
+// each command runs on a worker pool. Commands of one connection still
+// execute one at a time and in order, so its working directory behaves
+// exactly as with the blocking server.
+// 'get' bodies leave with FileChannel.transferTo on writable events and
+// 'put' bodies go straight from the socket into the upload file with
+// transferFrom on readable events, so neither passes through the heap.
+public class FileServerNIO {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_PENDING_COMMANDS = 64; // stop reading a connection beyond this
+    private static final int LISTING_CACHE_SIZE = 1024; // directories
+    private static final int COPY_CONCURRENCY = 2; // background copies running at once
+    private static final int COPY_QUEUE_LIMIT = 256; // waiting copies before 'copy' is refused
+    private static final int TREE_COPY_PARALLELISM = 4; // files copied at once by 'copy -r'
+    private static final int SIGNATURE_CACHE_SIZE = 256; // files whose 'sync' signatures are kept
+    private static final int SIGNATURE_PARALLELISM = 4; // threads computing signatures
+    private static final String INDEX_FILE = "fileserver.index"; // saved path index, -Dindex.file overrides
+    private static final int WRITE_CHUNK = 8192; // bytes per partial reply handed to a loop
+    private static final long ACCEPT_RETRY_MILLIS = 100; // after a failed accept, e.g. out of file descriptors
+
+    private final Path rootDirectory;
+    private final ListingCache listings = new ListingCache(LISTING_CACHE_SIZE);
+    private final CopyJobs copies = new CopyJobs(listings, COPY_CONCURRENCY, COPY_QUEUE_LIMIT, TREE_COPY_PARALLELISM);
+    private final BlockSignatures signatures = new BlockSignatures(SIGNATURE_CACHE_SIZE, SIGNATURE_PARALLELISM);
+    private final PathIndex index;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+
+    public FileServerNIO(String rootDir, int loopCount, int workerCount) throws IOException {
+        this.rootDirectory = Paths.get(rootDir).toAbsolutePath().normalize();
+        if (!Files.isDirectory(rootDirectory)) {
+            throw new IOException("The specified root directory is not valid.");
+        }
+        this.index = new PathIndex(rootDirectory, Paths.get(System.getProperty("index.file", INDEX_FILE)));
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "fs-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start(int port) {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            index.start();
+            for (EventLoop loop : loops) {
+                Thread t = new Thread(loop, "fs-loop-" + loop.id);
+                t.setDaemon(true);
+                t.start();
+            }
+            AsyncLog.info("NIO server started on port " + port + " (" + loops.length + " event loops, "
+                          + "worker pool for filesystem calls). Waiting for connections...");
+
+            // accepting is cheap: do it here and spread connections over the loops
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // the server socket is fine, so wait for descriptors to free up and go on
+                    AsyncLog.error("Error accepting client: " + e.getMessage());
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    AsyncLog.error("Error setting up client: " + e.getMessage());
+                    closeQuietly(channel);
+                    continue;
+                }
+                loops[next++ % loops.length].register(channel);
+            }
+        } catch (IOException e) {
+            AsyncLog.error("Error starting server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        final int id;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        // runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    AsyncLog.info("Client connected from: " + channel.getRemoteAddress());
+                } catch (IOException e) {
+                    AsyncLog.error("Error registering client: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // one broken task must not take the loop's other connections down
+                            AsyncLog.error("Event loop " + id + " task failed", e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.onReadable();
+                            if (key.isValid() && key.isWritable()) connection.onWritable();
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            AsyncLog.error("Event loop " + id + " dropped a connection", e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    AsyncLog.error("Event loop " + id + " error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // A command line plus, for 'put' and 'sync', the upload that follows it
+    private static final class Command {
+        final String line;
+        final Upload upload;
+
+        Command(String line, Upload upload) {
+            this.line = line;
+            this.upload = upload;
+        }
+    }
+
+    // Body of a 'put' as it arrives: 8 length bytes, then the data. A null
+    // file means the upload could not be stored and its bytes are discarded.
+    private static final class Upload {
+        final Path path;
+        final FileChannel file;
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        long length = -1;
+        long received = 0;
+        boolean done = false;
+        String error;
+
+        Upload(Path path, FileChannel file) {
+            this.path = path;
+            this.file = file;
+        }
+    }
+
+    // Something queued for the socket; write returns true once fully sent
+    private interface Outgoing {
+        boolean write(SocketChannel channel) throws IOException;
+
+        default void release() {
+        }
+    }
+
+    private static final class BufferOut implements Outgoing {
+        final ByteBuffer buffer;
+
+        BufferOut(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean write(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+    }
+
+    private static final class FileOut implements Outgoing {
+        final FileSession.Download download;
+        long sent = 0;
+
+        FileOut(FileSession.Download download) {
+            this.download = download;
+        }
+
+        @Override
+        public boolean write(SocketChannel channel) throws IOException {
+            while (sent < download.length) {
+                long n = download.channel.transferTo(download.position + sent, download.length - sent, channel);
+                if (n == 0) {
+                    if (download.position + sent >= download.channel.size()) {
+                        throw new IOException("File shrank while it was being sent.");
+                    }
+                    return false; // socket full, wait for OP_WRITE
+                }
+                sent += n;
+            }
+            release();
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                download.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    // Per-connection state; only touched on its event loop's thread, except
+    // for the session, which is handed to one worker at a time
+    private final class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final FileSession session = new FileSession(rootDirectory, listings, copies, index, signatures);
+        SelectionKey key;
+
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        Upload upload; // body of a 'put' currently being received
+
+        final Queue<Command> pendingCommands = new ArrayDeque<>();
+        final Queue<Outgoing> pendingWrites = new ArrayDeque<>();
+        boolean executing = false;
+        boolean closeAfterWrite = false;
+        boolean closed = false;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void onReadable() throws IOException {
+            if (upload != null && upload.length >= 0 && upload.file != null) {
+                // nothing buffered: move the body socket -> file directly
+                long n = upload.file.transferFrom(channel, upload.received, upload.length - upload.received);
+                if (n > 0) {
+                    upload.received += n;
+                    if (upload.received == upload.length) finishUpload();
+                    dispatch();
+                    updateInterest();
+                    return;
+                }
+                // nothing transferred: fall through to a read to detect end of stream
+            }
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (upload != null) {
+                    consumeUpload();
+                    continue;
+                }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String command = new String(line, 0, length, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    if (verb(command).equals("put") || verb(command).equals("sync")) {
+                        upload = startUpload();
+                    }
+                    pendingCommands.add(new Command(command, upload));
+                } else if (lineLength == MAX_LINE_LENGTH) {
+                    queueResponse("ERROR: Command line too long.");
+                    closeAfterWrite = true;
+                    break;
+                } else {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            readBuffer.clear();
+            dispatch();
+            updateInterest();
+        }
+
+        Upload startUpload() {
+            try {
+                Path path = session.newUploadFile();
+                return new Upload(path, FileChannel.open(path, StandardOpenOption.WRITE));
+            } catch (IOException e) {
+                Upload discard = new Upload(null, null);
+                discard.error = "ERROR: " + e.getMessage();
+                return discard;
+            }
+        }
+
+        // takes upload header and body bytes out of the read buffer
+        void consumeUpload() throws IOException {
+            if (upload.length < 0) {
+                while (upload.header.hasRemaining() && readBuffer.hasRemaining()) {
+                    upload.header.put(readBuffer.get());
+                }
+                if (upload.header.hasRemaining()) return;
+                upload.length = upload.header.flip().getLong();
+                if (upload.length < 0) {
+                    throw new IOException("Invalid frame length " + upload.length);
+                }
+            }
+            int chunk = (int) Math.min(readBuffer.remaining(), upload.length - upload.received);
+            if (upload.file != null) {
+                ByteBuffer slice = readBuffer.slice();
+                slice.limit(chunk);
+                while (slice.hasRemaining()) {
+                    upload.file.write(slice, upload.received + slice.position());
+                }
+            }
+            readBuffer.position(readBuffer.position() + chunk);
+            upload.received += chunk;
+            if (upload.received == upload.length) finishUpload();
+        }
+
+        void finishUpload() throws IOException {
+            if (upload.file != null) upload.file.close();
+            upload.done = true;
+            upload = null;
+        }
+
+        // hands the next command to a worker unless one is still running;
+        // a 'put' waits until its body has fully arrived
+        void dispatch() {
+            if (executing || closeAfterWrite || pendingCommands.isEmpty()) return;
+            Command command = pendingCommands.peek();
+            if (command.upload != null && !command.upload.done) return;
+            pendingCommands.poll();
+            executing = true;
+            AsyncLog.debug().append("Command received: ").append(command.line).log();
+            workers.execute(() -> {
+                Outgoing[] response;
+                try {
+                    response = execute(command);
+                } catch (RuntimeException e) {
+                    // still completes, or the connection would wait for this command forever
+                    AsyncLog.error("Command failed: " + command.line, e);
+                    response = new Outgoing[] {text("ERROR: " + e.getMessage())};
+                }
+                Outgoing[] reply = response;
+                loop.execute(() -> complete(command, reply));
+            });
+        }
+
+        // runs on a worker
+        Outgoing[] execute(Command command) {
+            String[] parts = command.line.trim().split("\\s+");
+            String argument = parts.length > 1 ? parts[1] : null;
+            switch (verb(command.line)) {
+                case "get": {
+                    FileSession.Download download = session.openDownload(command.line);
+                    if (download.channel == null) return new Outgoing[] {text(download.status)};
+                    byte[] status = (download.status + "\n").getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer header = ByteBuffer.allocate(status.length + 8);
+                    header.put(status).putLong(download.length).flip();
+                    return new Outgoing[] {new BufferOut(header), new FileOut(download)};
+                }
+                case "dir":
+                    if (parts.length > 1) {
+                        PageWriter writer = new PageWriter();
+                        String status;
+                        try {
+                            status = session.listPage(command.line, FileSession.PAGE_SIZE, writer::accept);
+                        } catch (IOException e) {
+                            status = "ERROR: " + e.getMessage();
+                        }
+                        writer.ship();
+                        return new Outgoing[] {text(status)};
+                    }
+                    return new Outgoing[] {text(session.execute(command.line))};
+                case "sum":
+                case "sig": {
+                    FileSession.Checksums checksums = verb(command.line).equals("sum")
+                            ? session.checksums(command.line) : session.signatures(command.line);
+                    if (checksums.frame == null) return new Outgoing[] {text(checksums.status)};
+                    byte[] status = (checksums.status + "\n").getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer reply = ByteBuffer.allocate(status.length + 8 + checksums.frame.length);
+                    reply.put(status).putLong(checksums.frame.length).put(checksums.frame).flip();
+                    return new Outgoing[] {new BufferOut(reply)};
+                }
+                case "put":
+                    if (command.upload.error != null) return new Outgoing[] {text(command.upload.error)};
+                    return new Outgoing[] {text(session.completeUpload(argument, command.upload.path, command.upload.length))};
+                case "sync":
+                    if (command.upload.error != null) return new Outgoing[] {text(command.upload.error)};
+                    return new Outgoing[] {text(session.completeSync(argument, command.upload.path))};
+                default:
+                    return new Outgoing[] {text(session.execute(command.line))};
+            }
+        }
+
+        // Collects the lines of a paged listing on the worker and ships them to
+        // the event loop in WRITE_CHUNK pieces, so the first entries are on
+        // the wire while the rest of the page is still being read
+        final class PageWriter {
+            ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK);
+
+            void accept(String line) {
+                byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > chunk.remaining()) ship();
+                if (bytes.length > chunk.remaining()) {
+                    chunk = ByteBuffer.allocate(bytes.length);
+                }
+                chunk.put(bytes);
+            }
+
+            void ship() {
+                if (chunk.position() == 0) return;
+                ByteBuffer full = chunk.flip();
+                chunk = ByteBuffer.allocate(WRITE_CHUNK);
+                loop.execute(() -> {
+                    if (closed) return;
+                    pendingWrites.add(new BufferOut(full));
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        close();
+                        return;
+                    }
+                    updateInterest();
+                });
+            }
+        }
+
+        void complete(Command command, Outgoing[] response) {
+            executing = false;
+            if (closed) {
+                for (Outgoing out : response) out.release();
+                return;
+            }
+            pendingWrites.addAll(Arrays.asList(response));
+            if (verb(command.line).equals("exit")) {
+                closeAfterWrite = true;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            dispatch();
+            updateInterest();
+        }
+
+        void queueResponse(String response) {
+            pendingWrites.add(text(response));
+        }
+
+        void onWritable() throws IOException {
+            flush();
+            updateInterest();
+        }
+
+        void flush() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                if (!pendingWrites.peek().write(channel)) return; // socket full, wait for OP_WRITE
+                pendingWrites.poll();
+            }
+            if (closeAfterWrite && !executing) {
+                close();
+            }
+        }
+
+        void updateInterest() {
+            if (closed || !key.isValid()) return;
+            int ops = 0;
+            if (!closeAfterWrite && pendingCommands.size() < MAX_PENDING_COMMANDS) ops |= SelectionKey.OP_READ;
+            if (!pendingWrites.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            closeQuietly(channel);
+            for (Outgoing out : pendingWrites) out.release();
+            pendingWrites.clear();
+            // drop uploads that never reached a worker
+            for (Command command : pendingCommands) {
+                if (command.upload != null) discard(command.upload);
+            }
+            if (upload != null) discard(upload);
+            AsyncLog.info("Client disconnected.");
+        }
+
+        void discard(Upload upload) {
+            if (upload.path == null) return;
+            try {
+                if (upload.file != null) upload.file.close();
+                Files.deleteIfExists(upload.path);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String verb(String commandLine) {
+        return commandLine.trim().split("\\s+")[0].toLowerCase();
+    }
+
+    private static Outgoing text(String response) {
+        return new BufferOut(ByteBuffer.wrap((response + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 4) {
+            AsyncLog.info("Usage: java FileServerNIO <port> <root_folder> [event_loops] [workers]");
+            return;
+        }
+
+        try {
+            int port = Integer.parseInt(args[0]);
+            String rootDir = args[1];
+            int cores = Runtime.getRuntime().availableProcessors();
+            int loopCount = args.length > 2 ? Integer.parseInt(args[2]) : Math.max(1, Math.min(4, cores / 2));
+            int workerCount = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(4, cores * 2);
+            FileServerNIO server = new FileServerNIO(rootDir, loopCount, workerCount);
+            server.start(port);
+        } catch (NumberFormatException e) {
+            AsyncLog.error("The specified port, loop count or worker count is not a valid number.");
+        } catch (IOException e) {
+            AsyncLog.error("Error initializing the server: " + e.getMessage());
+        }
+    }
+}
@@ -1,180 +1,631 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.stream.Collectors;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Datagram variant of FileServer: one command per datagram, one reply per
+// command. Every sender address gets its own FileSession, so each client
+// has its own working directory; 'exit' ends the session and sessions idle
+// for longer than -Dsession.idle seconds are dropped.
+// One thread receives from a non-blocking DatagramChannel and hands the
+// commands to a worker pool. Commands of one session still run one at a
+// time and in order, while different sessions run in parallel; workers
+// send their replies through the same channel.
+// A command sent as a REQUEST with a message id is answered in fragments,
+// however long the reply (see UdpMessages); a plain text command gets one
+// datagram, and a 'dir' too big for it gets its first page instead. A
+// BATCH carries several commands and gets all their replies in one reply.
+// Datagrams are received into pooled buffers that are queued as they are;
+// the worker reads the command name from the bytes and releases the
+// buffer, so only the command line handed to FileSession is a new String.
+// 'get' replies with a transfer id and then sends the file as numbered
+// chunks that the client acknowledges (see UdpTransfer). One sender thread
+// drives every transfer, on ACKs and on a timer tick.
 public class FileServerUDP {
-    private static Path rootDirectory;
-    private Path currentDirectory;
+    private static final int LISTING_CACHE_SIZE = 1024; // directories
+    private static final int COPY_CONCURRENCY = 2; // background copies running at once
+    private static final int COPY_QUEUE_LIMIT = 256; // waiting copies before 'copy' is refused
+    private static final int TREE_COPY_PARALLELISM = 4; // files copied at once by 'copy -r'
+    private static final int MAX_DATAGRAM = 65507;
+    private static final int MAX_COMMAND_LENGTH = 8192; // a datagram that fills it may be cut off and is refused
+    private static final int PAGE_SIZE = 200; // 200 names of up to 255 bytes fit one datagram
+    private static final int MAX_SESSIONS = 10000;
+    private static final int MAX_PENDING_COMMANDS = 64; // per session; more are dropped like lost datagrams
+    private static final int REPLY_HISTORY = 8; // replies per session kept for NACKs and repeated requests
+    private static final long SESSION_REPLY_BYTES = 16L << 20; // of kept replies, per session
+    private static final long MAX_REPLY_BYTES = 256L << 20; // of kept replies, all sessions together
+    private static final long IDLE_SECONDS = Long.getLong("session.idle", 300);
+    private static final long SWEEP_MILLIS = 1000;
+    private static final int MAX_TRANSFERS = 64;
+    private static final long TICK_MILLIS = 5; // retransmission timer resolution
+    private static final int SEND_BUFFER = 4 * 1024 * 1024;
+    private static final int IDLE_PACKETS = 1024; // receive buffers kept in the pool
+    private static final int REPLY_BUFFER = 64 * 1024; // per worker, grows for long replies
+    private static final String[] COMMANDS = {"dir", "cd", "mkdir", "copy", "pwd", "jobs", "status", "get", "exit"};
+    private static final byte[][] COMMAND_NAMES = Arrays.stream(COMMANDS)
+            .map(name -> name.getBytes(StandardCharsets.US_ASCII)).toArray(byte[][]::new);
+    private static final int DIR = 0, GET = 7, EXIT = 8; // indices in COMMANDS
+    private static final ThreadLocal<Codec> codecs = ThreadLocal.withInitial(Codec::new);
 
-    public FileServerUDP(String rootDir) throws IOException {
+    private final Path rootDirectory;
+    private final ListingCache listings = new ListingCache(LISTING_CACHE_SIZE);
+    private final CopyJobs copies = new CopyJobs(listings, COPY_CONCURRENCY, COPY_QUEUE_LIMIT, TREE_COPY_PARALLELISM);
+    private final Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    private final Map<Integer, UdpTransfer.Sender> transfers = new ConcurrentHashMap<>();
+    private final AtomicInteger transferIds = new AtomicInteger();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "udp-sender");
+        t.setDaemon(true);
+        return t;
+    });
+    private final UdpTransfer.Loss loss = UdpTransfer.Loss.fromProperties();
+    private final BufferPool fragments;
+    private final BufferPool packets = new BufferPool(MAX_COMMAND_LENGTH, IDLE_PACKETS);
+    private final AtomicLong replyBytes = new AtomicLong(); // kept by all sessions
+    private DatagramChannel channel;
+
+    public FileServerUDP(String rootDir, int workerCount) throws IOException {
         this.rootDirectory = Paths.get(rootDir).toAbsolutePath().normalize();
         if (!Files.isDirectory(rootDirectory)) {
             throw new IOException("The specified root directory is not valid.");
         }
-        this.currentDirectory = this.rootDirectory;
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "udp-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.fragments = new BufferPool(UdpMessages.HEADER + UdpMessages.FRAGMENT_SIZE, workerCount);
     }
 
     public void start(int port) {
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            System.out.println("UDP Server started on port " + port + ". Waiting for packets...");
-            byte[] buffer = new byte[1024];
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            this.channel = channel;
+            channel.bind(new InetSocketAddress(port));
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            sender.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            AsyncLog.info("UDP Server started on port " + port + " (sessions idle for " + IDLE_SECONDS
+                          + " s are dropped" + (loss.active() ? ", simulating packet loss" : "")
+                          + "). Waiting for packets...");
+            ByteBuffer buffer = packets.acquire();
+            long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
 
             while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                selector.select(SWEEP_MILLIS);
+                selector.selectedKeys().clear();
+                SocketAddress client;
+                while ((client = channel.receive(buffer.clear())) != null) {
+                    if (received(client, buffer.flip())) {
+                        buffer = packets.acquire(); // the last one is queued
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    expire(now);
+                    nextSweep = now + SWEEP_MILLIS;
+                }
+            }
+        } catch (IOException e) {
+            AsyncLog.error("Error starting or running UDP server: " + e.getMessage());
+        }
+    }
 
-                String commandLine = new String(packet.getData(), 0, packet.getLength()).trim();
-                System.out.println("Command received from " + packet.getAddress() + ":" + packet.getPort() + ": " + commandLine);
+    // Runs on the receiving thread. True if the packet was handed on, to
+    // a session or the sender thread, which release it to the pool.
+    private boolean received(SocketAddress sender, ByteBuffer packet) {
+        boolean marked = packet.hasRemaining() && packet.get(0) == UdpTransfer.MARK;
+        if (marked && packet.remaining() < 6) return false;
+        byte type = marked ? packet.get(1) : 0;
+        if (type == UdpMessages.NACK) {
+            // a session that is gone has no replies left to send again
+            Session session = sessions.get(sender);
+            if (session != null) return session.submit(packet);
+            gone(sender, packet.getInt(2));
+            return false;
+        }
+        if (marked && type != UdpMessages.REQUEST && type != UdpMessages.BATCH) return transferPacket(sender, packet);
+        int start = marked ? 6 : 0;
+        if (skip(packet, start, true) == packet.limit()) return false; // blank
+        if (packet.remaining() == MAX_COMMAND_LENGTH) {
+            // a command that may have been cut off is never run, not even in part
+            error(sender, type, marked ? packet.getInt(2) : 0, "ERROR: Command too long.");
+            return false;
+        }
 
-                String response = executeCommand(commandLine);
-                
-                byte[] responseData = response.getBytes();
-                DatagramPacket responsePacket = new DatagramPacket(responseData, responseData.length, packet.getAddress(), packet.getPort());
-                socket.send(responsePacket);
+        Session session = sessions.get(sender);
+        if (session == null) {
+            if (sessions.size() >= MAX_SESSIONS) {
+                send(sender, "ERROR: Too many sessions, try again later.");
+                return false;
+            }
+            session = new Session(sender);
+            sessions.put(sender, session);
+            AsyncLog.debug().append("Session started for ").append(sender).log();
+        }
+        session.lastSeen = System.currentTimeMillis();
+        boolean exit = type != UdpMessages.BATCH && command(packet, start) == EXIT && !hasArguments(packet, start);
+        if (exit) session.ended = true; // before its worker can see the queue empty
+        boolean queued = session.submit(packet);
+        if (exit) {
+            // the next datagram from this address starts over, even if the session is still busy
+            sessions.remove(sender);
+            AsyncLog.debug().append("Session of ").append(sender).append(" ended.").log();
+        }
+        return queued;
+    }
 
-                if (commandLine.equalsIgnoreCase("exit")) {
-                    System.out.println("'exit' command received. Resetting current directory.");
-                    this.currentDirectory = this.rootDirectory; 
+    // ACK or CANCEL, handed to the sender thread
+    private boolean transferPacket(SocketAddress client, ByteBuffer packet) {
+        byte type = packet.get(1);
+        UdpTransfer.Sender transfer = transfers.get(packet.getInt(2));
+        if (transfer == null || !transfer.client.equals(client)) return false;
+        packet.position(6);
+        sender.execute(() -> {
+            try {
+                if (type == UdpTransfer.ACK && packet.remaining() >= 17) {
+                    transfer.onAck(packet, System.nanoTime());
+                } else if (type == UdpTransfer.CANCEL) {
+                    transfer.cancel();
                 }
+            } catch (IOException e) {
+                AsyncLog.warn("Transfer " + transfer.id + " failed: " + e.getMessage());
+                transfer.cancel();
+            } finally {
+                packets.release(packet);
             }
-        } catch (IOException e) {
-            System.err.println("Error starting or running UDP server: " + e.getMessage());
+            if (transfer.done()) finish(transfer);
+        });
+        return true;
+    }
+
+    // Index in COMMANDS of the first word from position start, or -1;
+    // compared byte by byte, ignoring ASCII case, so nothing is decoded
+    private static int command(ByteBuffer line, int start) {
+        int from = skip(line, start, true);
+        int to = skip(line, from, false);
+        for (int c = 0; c < COMMAND_NAMES.length; c++) {
+            byte[] name = COMMAND_NAMES[c];
+            if (to - from != name.length) continue;
+            int i = 0;
+            while (i < name.length && (line.get(from + i) | 0x20) == name[i]) i++;
+            if (i == name.length) return c;
         }
+        return -1;
     }
 
-	private String executeCommand(String commandLine) {
-        String[] parts = commandLine.trim().split("\\s+");
-        String command = parts[0].toLowerCase();
-        try {
-            switch (command) {
-                case "dir":
-                    return handleDir();
-                case "cd":
-                    if (parts.length < 2) return "ERROR: Invalid 'cd' command format.";
-                    String target = parts[1];
-                    if (target.equals("..")) {
-                        return handleCdParent();
-                    } else {
-                        return handleCdPath(target);
-                    }
-                case "mkdir":
-                    if (parts.length < 2) return "ERROR: Invalid 'mkdir' command format.";
-                    return handleMkdir(parts[1]);
-                case "copy":
-                    if (parts.length < 3) return "ERROR: Invalid 'copy' command format. Usage: copy source/file destination";
-                    return handleCopy(parts[1], parts[2]);
-                case "exit":
-                    return "SUCCESS: Disconnecting.";
-                default:
-                    return "ERROR: Unknown command.";
+    private static boolean hasArguments(ByteBuffer line, int start) {
+        int end = skip(line, skip(line, start, true), false);
+        return skip(line, end, true) < line.limit();
+    }
+
+    // first index from start whose byte is (not) white space, as String.trim() sees it
+    private static int skip(ByteBuffer line, int start, boolean space) {
+        int i = start;
+        while (i < line.limit() && (line.get(i) >= 0 && line.get(i) <= ' ') == space) i++;
+        return i;
+    }
+
+    // runs on the sender thread
+    private void tick() {
+        long now = System.nanoTime();
+        for (UdpTransfer.Sender transfer : transfers.values()) {
+            try {
+                transfer.tick(now);
+            } catch (IOException e) {
+                AsyncLog.warn("Transfer " + transfer.id + " failed: " + e.getMessage());
+                transfer.cancel();
             }
-        } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
+            if (transfer.done()) finish(transfer);
         }
     }
-    
-	private String handleDir() throws IOException {
-        String relativePath = rootDirectory.relativize(currentDirectory).toString();
 
-        String fileList = Files.list(currentDirectory)
-                .map(path -> {
-                    String name = path.getFileName().toString();
-                    return Files.isDirectory(path) ? "[DIR] " + name : "[FILE] " + name;
-                })
-                .collect(Collectors.joining("\n"));
+    // runs on the sender thread
+    private void finish(UdpTransfer.Sender transfer) {
+        if (transfers.remove(transfer.id) == null) return;
+        try {
+            transfer.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        AsyncLog.info("Transfer " + transfer.id + " to " + transfer.client + (transfer.failed() ? " abandoned: " : ": ")
+                      + transfer.summary());
+    }
 
-        return "SUCCESS: Current directory: /" + (relativePath.isEmpty() ? "" : relativePath + "/") + "\n" + fileList;
+    // a full socket buffer holds a chunk back; a fragment is then lost and NACKed
+    private boolean sendPacket(ByteBuffer packet, SocketAddress client) throws IOException {
+        if (loss.drop()) return true;
+        return channel.send(packet, client) > 0;
     }
-    
-	private String handleCdParent() {
-        if (currentDirectory.equals(rootDirectory)) {
-            return "ERROR: Cannot navigate above the virtual root directory.";
-        }
-        Path parent = currentDirectory.getParent();
-        if (parent != null) {
-            currentDirectory = parent;
-            return "SUCCESS: Current directory changed to parent.";
+
+    private void expire(long now) {
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (now - session.lastSeen > IDLE_SECONDS * 1000 && session.idle()) {
+                it.remove();
+                session.forgetReplies(); // idle, and nothing can be queued for it any more
+                AsyncLog.debug().append("Session of ").append(session.address).append(" expired.").log();
+            }
         }
-        return "ERROR: Cannot change to parent directory.";
     }
-    
-	private String handleMkdir(String folderName) throws IOException {
-        Path newPath = currentDirectory.resolve(folderName).normalize();
-        
-        if (!newPath.startsWith(rootDirectory)) {
-            return "ERROR: Operation attempted outside the virtual root directory.";
+
+    // an error in the form the request expects: text for a plain datagram,
+    // a fragmented reply for a REQUEST or BATCH
+    private void error(SocketAddress address, byte type, int message, String error) {
+        if (type == 0) {
+            send(address, error);
+            return;
+        }
+        byte[] text = error.getBytes(StandardCharsets.UTF_8);
+        // a BATCH gets it as the reply to its first command
+        byte[] reply = type == UdpMessages.BATCH
+                       ? ByteBuffer.allocate(4 + text.length).putInt(text.length).put(text).array() : text;
+        try {
+            UdpMessages.send(this::sendPacket, fragments, address, message, reply, null);
+        } catch (IOException e) {
+            AsyncLog.warn("Could not reply to " + address + ": " + e.getMessage());
         }
+    }
 
-        if (Files.exists(newPath)) {
-            return "ERROR: Directory '" + folderName + "' already exists.";
+    // tells a client that NACKed a reply that it is no longer kept
+    private void gone(SocketAddress address, int message) {
+        try {
+            ByteBuffer packet = ByteBuffer.allocate(6).put(UdpTransfer.MARK).put(UdpMessages.GONE).putInt(message).flip();
+            sendPacket(packet, address);
+        } catch (IOException e) {
+            AsyncLog.warn("Could not reply to " + address + ": " + e.getMessage());
         }
+    }
 
-        Files.createDirectory(newPath);
-        return "SUCCESS: Directory '" + folderName + "' created.";
+    // Sends from any thread; a full socket buffer loses the reply like the network would
+    private void send(SocketAddress address, String response) {
+        if (loss.drop()) return;
+        try {
+            if (channel.send(codecs.get().encode(response), address) == 0) {
+                AsyncLog.debug().append("Reply to ").append(address).append(" dropped, send buffer full.").log();
+            }
+        } catch (IOException e) {
+            AsyncLog.warn("Could not reply to " + address + ": " + e.getMessage());
+        }
     }
-    
-	private String handleCdPath(String relativeOrAbsolutePath) throws IOException {
-        Path newPath;
 
-        if (relativeOrAbsolutePath.startsWith("/")) {
-            String pathStr = relativeOrAbsolutePath.substring(1); 
-            newPath = rootDirectory.resolve(pathStr).normalize();
-        } else {
-            newPath = currentDirectory.resolve(relativeOrAbsolutePath).normalize();
+    // Per worker thread: decodes command lines and encodes replies into
+    // buffers that are reused from one command to the next
+    private static final class Codec {
+        final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer chars = CharBuffer.allocate(MAX_COMMAND_LENGTH);
+        ByteBuffer out = ByteBuffer.allocate(REPLY_BUFFER);
+
+        // the trimmed command line between the position and the limit of line
+        String decode(ByteBuffer line) {
+            decoder.reset().decode(line, chars.clear(), true);
+            decoder.flush(chars);
+            chars.flip();
+            int start = 0;
+            int end = chars.limit();
+            while (start < end && chars.get(start) <= ' ') start++;
+            while (end > start && chars.get(end - 1) <= ' ') end--;
+            return chars.subSequence(start, end).toString();
+        }
+
+        // a single reply, flipped for sending
+        ByteBuffer encode(String reply) {
+            clear();
+            append(reply);
+            return out.flip();
+        }
+
+        void clear() {
+            if (out.capacity() > REPLY_BUFFER * 16) out = ByteBuffer.allocate(REPLY_BUFFER); // after a huge listing
+            out.clear();
+        }
+
+        void append(String text) {
+            CharBuffer in = CharBuffer.wrap(text);
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(in, out, true);
+                if (result.isOverflow()) {
+                    grow();
+                    continue;
+                }
+                if (!encoder.flush(out).isOverflow()) return;
+                grow();
+            }
+        }
+
+        // one reply of a batch, after its length
+        void appendBatched(String reply) {
+            if (out.remaining() < 4) grow();
+            int start = out.position();
+            out.putInt(0);
+            append(reply);
+            out.putInt(start, out.position() - start - 4);
         }
 
-        if (!newPath.startsWith(rootDirectory)) {
-            return "ERROR: Specified path '" + relativeOrAbsolutePath + "' is outside the virtual root directory.";
+        // what was appended since clear()
+        byte[] bytes() {
+            return Arrays.copyOf(out.array(), out.position());
         }
 
-        if (Files.isDirectory(newPath)) {
-            currentDirectory = newPath;
-            return "SUCCESS: Current directory changed to: " + rootDirectory.relativize(currentDirectory).toString();
-        } else {
-            return "ERROR: Specified path '" + relativeOrAbsolutePath + "' is not a valid directory or does not exist.";
+        private void grow() {
+            out = ByteBuffer.allocate(out.capacity() * 2).put(out.flip());
         }
     }
-	
-	private String handleCopy(String sourcePathStr, String destPathStr) throws IOException {
-        Path sourcePath = currentDirectory.resolve(sourcePathStr).normalize();
-        Path destDir = currentDirectory.resolve(destPathStr).normalize();
 
-        if (!sourcePath.startsWith(rootDirectory) || !destDir.startsWith(rootDirectory)) {
-            return "ERROR: Operation attempted outside the virtual root directory.";
+    // One client address. Commands queue here and a single worker at a time
+    // drains them, so the FileSession is never used by two threads at once.
+    private final class Session {
+        final SocketAddress address;
+        final FileSession session = new FileSession(rootDirectory, listings, copies, null, null);
+        final Queue<ByteBuffer> pending = new ArrayDeque<>(); // pooled packets
+        volatile long lastSeen;
+        boolean executing = false;
+        // only touched by the worker draining the session
+        UdpTransfer.Sender transfer;
+        String transferCommand;
+        Runnable afterReply;
+        final Map<Integer, byte[]> replies = new LinkedHashMap<>(); // oldest first
+        long keptBytes;
+        volatile boolean ended; // by 'exit'; the worker drops the replies when done
+
+        Session(SocketAddress address) {
+            this.address = address;
         }
-        
-        if (!Files.isRegularFile(sourcePath)) {
-            return "ERROR: Source is not a valid file or does not exist: " + sourcePathStr;
+
+        // false if the packet was dropped, and stays with the caller
+        boolean submit(ByteBuffer packet) {
+            synchronized (this) {
+                if (pending.size() == MAX_PENDING_COMMANDS) return false;
+                pending.add(packet);
+                if (executing) return true;
+                executing = true;
+            }
+            workers.execute(this::drain);
+            return true;
         }
 
-        if (!Files.isDirectory(destDir)) {
-            return "ERROR: Destination is not a valid directory or does not exist: " + destPathStr;
+        synchronized boolean idle() {
+            return !executing;
         }
 
-        String fileName = sourcePath.getFileName().toString();
-        Path finalDestPath = destDir.resolve(fileName);
+        // runs on a worker
+        void drain() {
+            Codec codec = codecs.get();
+            boolean drained = false;
+            try {
+                while (true) {
+                    ByteBuffer packet;
+                    synchronized (this) {
+                        packet = pending.poll();
+                        if (packet == null) {
+                            executing = false;
+                            drained = true;
+                            if (ended) forgetReplies();
+                            return;
+                        }
+                    }
+                    try {
+                        handle(packet, codec);
+                    } catch (RuntimeException e) {
+                        AsyncLog.error("Command from " + address + " failed", e);
+                        boolean marked = packet.get(0) == UdpTransfer.MARK;
+                        error(address, marked ? packet.get(1) : 0, marked ? packet.getInt(2) : 0, "ERROR: " + e.getMessage());
+                    } finally {
+                        packets.release(packet);
+                    }
+                    if (afterReply != null) {
+                        sender.execute(afterReply); // chunks sent before the reply would be thrown away
+                        afterReply = null;
+                    }
+                }
+            } finally {
+                // otherwise the session would never run a command or expire again
+                if (!drained) {
+                    synchronized (this) {
+                        executing = false;
+                    }
+                }
+            }
+        }
 
-        Files.copy(sourcePath, finalDestPath, StandardCopyOption.REPLACE_EXISTING);
-        
-        return "SUCCESS: File '" + fileName + "' copied from " + sourcePathStr + " to " + destPathStr;
+        void handle(ByteBuffer packet, Codec codec) {
+            if (packet.get(0) != UdpTransfer.MARK) {
+                send(address, execute(packet, codec, false));
+                return;
+            }
+            byte type = packet.get(1);
+            int message = packet.getInt(2);
+            packet.position(6);
+            // a repeated request, or a NACK, is answered from the reply already sent
+            byte[] reply = replies.get(message);
+            if (type == UdpMessages.NACK) {
+                if (reply != null) {
+                    reply(message, reply, UdpMessages.nacked(packet));
+                } else {
+                    gone(address, message);
+                }
+                return;
+            }
+            if (reply == null) {
+                if (type == UdpMessages.BATCH) {
+                    batch(packet, codec);
+                } else {
+                    String response = execute(packet, codec, true);
+                    codec.clear();
+                    codec.append(response);
+                }
+                reply = codec.bytes();
+                remember(message, reply);
+            }
+            reply(message, reply, null);
+        }
+
+        // Keeps a reply for NACKs and repeats, evicting the oldest beyond
+        // REPLY_HISTORY or the byte budgets. A reply of one fragment is
+        // always kept, so a repeated small command, such as 'mkdir', is
+        // never run twice; a longer one that does not fit is only sent. A
+        // repeated request for an evicted reply runs its command again.
+        void remember(int message, byte[] reply) {
+            replies.put(message, reply);
+            keptBytes += reply.length;
+            replyBytes.addAndGet(reply.length);
+            Iterator<Map.Entry<Integer, byte[]>> it = replies.entrySet().iterator();
+            while (it.hasNext() && (replies.size() > REPLY_HISTORY || keptBytes > SESSION_REPLY_BYTES
+                                    || replyBytes.get() > MAX_REPLY_BYTES)) {
+                Map.Entry<Integer, byte[]> eldest = it.next();
+                if (eldest.getKey() == message && reply.length <= UdpMessages.FRAGMENT_SIZE) break;
+                it.remove();
+                keptBytes -= eldest.getValue().length;
+                replyBytes.addAndGet(-eldest.getValue().length);
+            }
+        }
+
+        // when the session ends; only with no worker draining it
+        void forgetReplies() {
+            replyBytes.addAndGet(-keptBytes);
+            keptBytes = 0;
+            replies.clear();
+        }
+
+        // Runs the commands of a BATCH in order, their replies collected in the codec
+        void batch(ByteBuffer packet, Codec codec) {
+            codec.clear();
+            int limit = packet.limit();
+            for (int n = 0; n < UdpMessages.MAX_BATCH && packet.remaining() >= 2; n++) {
+                int length = packet.getShort() & 0xFFFF;
+                int end = packet.position() + length;
+                if (end > limit) break;
+                packet.limit(end);
+                int command = command(packet, packet.position());
+                // a transfer needs its own reply, and the session outlives the batch
+                codec.appendBatched(command == GET || command == EXIT ? "ERROR: 'get' and 'exit' cannot be batched."
+                                                                      : execute(packet, codec, true));
+                packet.limit(limit).position(end);
+            }
+        }
+
+        void reply(int message, byte[] reply, int[] indices) {
+            try {
+                UdpMessages.send(FileServerUDP.this::sendPacket, fragments, address, message, reply, indices);
+            } catch (IOException e) {
+                AsyncLog.warn("Could not reply to " + address + ": " + e.getMessage());
+            }
+        }
+
+        // fragmented replies have room for any listing, single datagrams do not
+        // the command line between the position and the limit of line
+        String execute(ByteBuffer line, Codec codec, boolean fragmented) {
+            int command = command(line, line.position());
+            boolean arguments = hasArguments(line, line.position());
+            if (command < 0) return "ERROR: Unknown command.";
+            String commandLine = codec.decode(line);
+            AsyncLog.debug().append("Command received from ").append(address).append(": ").append(commandLine).log();
+            if (command == GET) return get(commandLine);
+            if (command != DIR) return session.execute(commandLine);
+            try {
+                if (arguments) return page(commandLine);
+                String response = session.execute(commandLine);
+                int limit = fragmented ? UdpMessages.MAX_FRAGMENTS * UdpMessages.FRAGMENT_SIZE : MAX_DATAGRAM;
+                // at most 3 bytes per char, so most listings need no counting
+                if (response.length() > limit / 3 && response.getBytes(StandardCharsets.UTF_8).length > limit) {
+                    // too big for the reply: send the first page instead
+                    return page("dir --page 0");
+                }
+                return response;
+            } catch (IOException e) {
+                return "ERROR: " + e.getMessage();
+            }
+        }
+
+        // Starts a transfer once the reply is out. A repeated 'get' whose
+        // reply was lost gets the same transfer again rather than a new one.
+        String get(String commandLine) {
+            if (transfer != null && !transfer.done() && !transfer.acknowledged()
+                && commandLine.equals(transferCommand)) {
+                return transfer.status;
+            }
+            if (transfer != null) {
+                UdpTransfer.Sender previous = transfer;
+                sender.execute(previous::cancel); // the next tick closes it
+                transfer = null;
+            }
+            if (transfers.size() >= MAX_TRANSFERS) return "ERROR: Too many transfers, try again later.";
+            FileSession.Download download = session.openDownload(commandLine);
+            if (download.channel == null) return download.status;
+            int id = transferIds.incrementAndGet();
+            String status = download.status + " Transfer " + id + ": " + download.length + " bytes in "
+                            + UdpTransfer.Sender.chunks(download.length) + " chunks of " + UdpTransfer.CHUNK_SIZE + " bytes.";
+            UdpTransfer.Sender started = new UdpTransfer.Sender(id, address, download.channel, download.position,
+                                                                download.length, status, FileServerUDP.this::sendPacket);
+            transfers.put(id, started);
+            transfer = started;
+            transferCommand = commandLine;
+            afterReply = () -> {
+                try {
+                    started.start(System.nanoTime());
+                } catch (IOException e) {
+                    AsyncLog.warn("Transfer " + id + " failed: " + e.getMessage());
+                    started.cancel();
+                }
+                if (started.done()) finish(started);
+            };
+            return status;
+        }
+
+        // one page per datagram; PAGE_SIZE entries always fit
+        String page(String commandLine) throws IOException {
+            StringBuilder response = new StringBuilder();
+            String status = session.listPage(commandLine, PAGE_SIZE, line -> response.append(line).append('\n'));
+            return response.append(status).toString();
+        }
     }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java FileServerUDP <port> <root_folder>");
+        if (args.length < 2 || args.length > 3) {
+            AsyncLog.info("Usage: java FileServerUDP <port> <root_folder> [workers]");
             return;
         }
 
         try {
             int port = Integer.parseInt(args[0]);
             String rootDir = args[1];
-            FileServerUDP server = new FileServerUDP(rootDir);
+            int workerCount = args.length > 2 ? Integer.parseInt(args[2])
+                    : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            FileServerUDP server = new FileServerUDP(rootDir, workerCount);
             server.start(port);
         } catch (NumberFormatException e) {
-            System.err.println("The specified port is not a valid number.");
+            AsyncLog.error("The specified port or worker count is not a valid number.");
         } catch (IOException e) {
-            System.err.println("Error initializing the server: " + e.getMessage());
+            AsyncLog.error("Error initializing the server: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
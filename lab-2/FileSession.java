@@ -0,0 +1,581 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32C;
+
+// Command handling for one client connection. Every session owns its
+// working directory, so any number of sessions can run side by side
+// below the same virtual root.
+public class FileSession {
+    public static final int PAGE_SIZE = 1000; // entries per 'dir --page' reply
+    private static final int FIND_LIMIT = 1000; // matches per 'find' reply
+
+    private final Path rootDirectory;
+    private static final long INLINE_COPY_LIMIT = 4L * 1024 * 1024; // larger copies become jobs
+    private static final int JOB_HISTORY = 64;
+
+    private final ListingCache listings;
+    private final CopyJobs copies;
+    private final PathIndex index;
+    private final BlockSignatures signatures;
+    // this session's copy jobs, oldest first
+    private final Map<Long, CopyJobs.Job> jobs = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CopyJobs.Job> eldest) {
+            return size() > JOB_HISTORY;
+        }
+    };
+    private Path currentDirectory;
+
+    public FileSession(Path rootDirectory, ListingCache listings, CopyJobs copies, PathIndex index,
+                       BlockSignatures signatures) {
+        this.rootDirectory = rootDirectory;
+        this.listings = listings;
+        this.copies = copies;
+        this.index = index;
+        this.signatures = signatures;
+        this.currentDirectory = rootDirectory;
+    }
+
+    public Path getCurrentDirectory() {
+        return currentDirectory;
+    }
+
+    public String execute(String commandLine) {
+        String[] parts = commandLine.trim().split("\\s+");
+        String command = parts[0].toLowerCase();
+        try {
+            switch (command) {
+                case "dir":
+                    if (parts.length > 1) {
+                        StringBuilder page = new StringBuilder();
+                        String status = listPage(commandLine, PAGE_SIZE, line -> page.append(line).append('\n'));
+                        return page.append(status).toString();
+                    }
+                    return handleDir();
+                case "cd":
+                    if (parts.length < 2) return "ERROR: Invalid 'cd' command format.";
+                    String target = parts[1];
+                    if (target.equals("..")) {
+                        return handleCdParent();
+                    } else {
+                        return handleCdPath(target);
+                    }
+                case "mkdir":
+                    if (parts.length < 2) return "ERROR: Invalid 'mkdir' command format.";
+                    return handleMkdir(parts[1]);
+                case "copy":
+                    if (parts.length == 4 && parts[1].equals("-r")) return handleCopyTree(parts[2], parts[3]);
+                    if (parts.length < 3) return "ERROR: Invalid 'copy' command format. Usage: copy [-r] source destination";
+                    return handleCopy(parts[1], parts[2]);
+                case "pwd":
+                    String relative = rootDirectory.relativize(currentDirectory).toString();
+                    return "SUCCESS: Current directory: /" + (relative.isEmpty() ? "" : relative + "/");
+                case "get":
+                case "put":
+                case "sum":
+                case "sig":
+                case "sync":
+                    return "ERROR: '" + command + "' needs a streaming connection.";
+                case "find":
+                    if (parts.length != 2) return "ERROR: Invalid 'find' command format. Usage: find pattern";
+                    return handleFind(parts[1]);
+                case "jobs":
+                    return handleJobs();
+                case "status":
+                    if (parts.length < 2) return "ERROR: Invalid 'status' command format. Usage: status job_id";
+                    return handleStatus(parts[1]);
+                case "exit":
+                    return "SUCCESS: Disconnecting.";
+                default:
+                    return "ERROR: Unknown command.";
+            }
+        } catch (Exception e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    private String handleDir() throws IOException {
+        String relativePath = rootDirectory.relativize(currentDirectory).toString();
+
+        String fileList = listings.listing(currentDirectory);
+        return "SUCCESS: Current directory: /" + (relativePath.isEmpty() ? "" : relativePath + "/") + "\n" + fileList;
+    }
+
+    // Receives reply lines as they are produced, so a transport can write
+    // them out before the whole reply exists
+    public interface LineSink {
+        void accept(String line) throws IOException;
+    }
+
+    // dir --page N: entries pageSize*N .. pageSize*(N+1)-1 of the current
+    // directory, read from a DirectoryStream and handed to out one at a
+    // time. The status line is returned last, with the cursor for the
+    // next page, so memory stays bounded however large the directory is.
+    public String listPage(String commandLine, int pageSize, LineSink out) throws IOException {
+        String[] parts = commandLine.trim().split("\\s+");
+        long page;
+        try {
+            if (parts.length != 3 || !parts[1].equals("--page")) throw new NumberFormatException();
+            page = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            return "ERROR: Invalid 'dir' command format. Usage: dir [--page N]";
+        }
+        if (page < 0) return "ERROR: Page number must not be negative.";
+        return listPage(rootDirectory, currentDirectory, page, pageSize, out);
+    }
+
+    public static String listPage(Path rootDirectory, Path directory, long page, int pageSize, LineSink out)
+            throws IOException {
+        String relativePath = rootDirectory.relativize(directory).toString();
+        String name = "/" + (relativePath.isEmpty() ? "" : relativePath + "/");
+        int count = 0;
+        boolean more = false;
+        DirectoryStream<Path> entries;
+        try {
+            entries = Files.newDirectoryStream(directory);
+        } catch (IOException e) {
+            return "ERROR: " + e.getMessage();
+        }
+        try (entries) {
+            long skip = page * pageSize;
+            for (Path path : entries) {
+                if (skip > 0) {
+                    skip--;
+                } else if (count == pageSize) {
+                    more = true;
+                    break;
+                } else {
+                    String entry = path.getFileName().toString();
+                    out.accept(Files.isDirectory(path) ? "[DIR] " + entry : "[FILE] " + entry);
+                    count++;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            return "ERROR: " + e.getCause().getMessage();
+        }
+        return "SUCCESS: Page " + page + " of " + name + ": " + count + " entries."
+               + (more ? " Next: dir --page " + (page + 1) : " Last page.");
+    }
+
+    private String handleCdParent() {
+        if (currentDirectory.equals(rootDirectory)) {
+            return "ERROR: Cannot navigate above the virtual root directory.";
+        }
+        Path parent = currentDirectory.getParent();
+        if (parent != null) {
+            currentDirectory = parent;
+            return "SUCCESS: Current directory changed to parent.";
+        }
+        return "ERROR: Cannot change to parent directory.";
+    }
+
+    private String handleMkdir(String folderName) throws IOException {
+        Path newPath = currentDirectory.resolve(folderName).normalize();
+        
+        if (!newPath.startsWith(rootDirectory)) {
+            return "ERROR: Operation attempted outside the virtual root directory.";
+        }
+
+        if (Files.exists(newPath)) {
+            return "ERROR: Directory '" + folderName + "' already exists.";
+        }
+
+        Files.createDirectory(newPath);
+        listings.invalidate(newPath.getParent());
+        return "SUCCESS: Directory '" + folderName + "' created.";
+    }
+
+    private String handleCdPath(String relativeOrAbsolutePath) throws IOException {
+        Path newPath;
+
+        if (relativeOrAbsolutePath.startsWith("/")) {
+            String pathStr = relativeOrAbsolutePath.substring(1); 
+            newPath = rootDirectory.resolve(pathStr).normalize();
+        } else {
+            newPath = currentDirectory.resolve(relativeOrAbsolutePath).normalize();
+        }
+
+        if (!newPath.startsWith(rootDirectory)) {
+            return "ERROR: Specified path '" + relativeOrAbsolutePath + "' is outside the virtual root directory.";
+        }
+
+        if (Files.isDirectory(newPath)) {
+            currentDirectory = newPath;
+            return "SUCCESS: Current directory changed to: " + rootDirectory.relativize(currentDirectory).toString();
+        } else {
+            return "ERROR: Specified path '" + relativeOrAbsolutePath + "' is not a valid directory or does not exist.";
+        }
+    }
+
+    private String handleCopy(String sourcePathStr, String destPathStr) throws IOException {
+        Path sourcePath = currentDirectory.resolve(sourcePathStr).normalize();
+        Path destDir = currentDirectory.resolve(destPathStr).normalize();
+
+        if (!sourcePath.startsWith(rootDirectory) || !destDir.startsWith(rootDirectory)) {
+            return "ERROR: Operation attempted outside the virtual root directory.";
+        }
+        
+        if (!Files.isRegularFile(sourcePath)) {
+            return "ERROR: Source is not a valid file or does not exist: " + sourcePathStr;
+        }
+
+        if (!Files.isDirectory(destDir)) {
+            return "ERROR: Destination is not a valid directory or does not exist: " + destPathStr;
+        }
+
+        String fileName = sourcePath.getFileName().toString();
+        Path finalDestPath = destDir.resolve(fileName);
+
+        // small files are copied right away, anything larger runs in the background
+        if (Files.size(sourcePath) <= INLINE_COPY_LIMIT) {
+            copies.copyNow(sourcePath, finalDestPath);
+            return "SUCCESS: File '" + fileName + "' copied from " + sourcePathStr + " to " + destPathStr;
+        }
+        CopyJobs.Job job;
+        try {
+            job = copies.submit(sourcePath, finalDestPath, fileName + " -> " + destPathStr);
+        } catch (RejectedExecutionException e) {
+            return "ERROR: Too many copy jobs queued, try again later.";
+        }
+        jobs.put(job.id, job);
+        return "SUCCESS: Copy job " + job.id + " started: '" + fileName + "' from " + sourcePathStr + " to "
+               + destPathStr + ". Use 'status " + job.id + "' to follow it.";
+    }
+
+    // copy -r: always a background job, the size of a tree is not known up front
+    private String handleCopyTree(String sourcePathStr, String destPathStr) {
+        Path sourcePath = currentDirectory.resolve(sourcePathStr).normalize();
+        Path destDir = currentDirectory.resolve(destPathStr).normalize();
+
+        if (!sourcePath.startsWith(rootDirectory) || !destDir.startsWith(rootDirectory)) {
+            return "ERROR: Operation attempted outside the virtual root directory.";
+        }
+        if (sourcePath.equals(rootDirectory)) {
+            return "ERROR: Cannot copy the virtual root directory.";
+        }
+        if (!Files.isDirectory(sourcePath)) {
+            return "ERROR: Source is not a valid directory or does not exist: " + sourcePathStr;
+        }
+        if (!Files.isDirectory(destDir)) {
+            return "ERROR: Destination is not a valid directory or does not exist: " + destPathStr;
+        }
+        if (destDir.startsWith(sourcePath)) {
+            return "ERROR: Cannot copy a directory into itself.";
+        }
+
+        String folderName = sourcePath.getFileName().toString();
+        CopyJobs.Job job;
+        try {
+            job = copies.submitTree(sourcePath, destDir.resolve(folderName), folderName + "/ -> " + destPathStr);
+        } catch (RejectedExecutionException e) {
+            return "ERROR: Too many copy jobs queued, try again later.";
+        }
+        jobs.put(job.id, job);
+        return "SUCCESS: Copy job " + job.id + " started: directory '" + folderName + "' from " + sourcePathStr
+               + " to " + destPathStr + ". Use 'status " + job.id + "' to follow it.";
+    }
+
+    // matches below the current directory, one per line, status line last
+    private String handleFind(String pattern) throws IOException {
+        StringBuilder found = new StringBuilder();
+        String directory = rootDirectory.relativize(currentDirectory).toString().replace('\\', '/');
+        String status = index.find(directory, pattern, FIND_LIMIT, line -> found.append(line).append('\n'));
+        return found.append(status).toString();
+    }
+
+    // one line per job, status line last
+    private String handleJobs() {
+        StringBuilder sb = new StringBuilder();
+        int running = 0;
+        for (CopyJobs.Job job : jobs.values()) {
+            sb.append(job.describe()).append('\n');
+            CopyJobs.State state = job.state();
+            if (state == CopyJobs.State.QUEUED || state == CopyJobs.State.RUNNING) running++;
+        }
+        return sb.append("SUCCESS: ").append(jobs.size()).append(" jobs, ").append(running).append(" active.").toString();
+    }
+
+    private String handleStatus(String id) {
+        CopyJobs.Job job;
+        try {
+            job = jobs.get(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            job = null;
+        }
+        if (job == null) return "ERROR: No such job: " + id;
+        return (job.state() == CopyJobs.State.FAILED ? "ERROR: " : "SUCCESS: ") + job.describe();
+    }
+
+    // A file opened for 'get'. The transport sends the status line, then
+    // the region as one frame; channel is null when the request failed.
+    public static final class Download implements Closeable {
+        public final String status;
+        public final FileChannel channel;
+        public final long position;
+        public final long length;
+        public final boolean compressible; // false for formats that are compressed already
+
+        Download(String status, FileChannel channel, long position, long length, boolean compressible) {
+            this.status = status;
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.compressible = compressible;
+        }
+
+        static Download error(String status) {
+            return new Download(status, null, 0, 0, false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+        }
+    }
+
+    // get <file> [offset [length]]: the whole file, or the range starting at
+    // offset (to the end of the file unless length is given). Ranges let a
+    // client resume a download or fetch chunks over several connections.
+    public Download openDownload(String commandLine) {
+        String[] parts = commandLine.trim().split("\\s+");
+        if (parts.length < 2 || parts.length > 4) {
+            return Download.error("ERROR: Invalid 'get' command format. Usage: get file [offset [length]]");
+        }
+        long offset;
+        long length;
+        try {
+            offset = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+            length = parts.length > 3 ? Long.parseLong(parts[3]) : -1;
+        } catch (NumberFormatException e) {
+            return Download.error("ERROR: Offset and length must be numbers.");
+        }
+        if (offset < 0 || (parts.length > 3 && length < 0)) {
+            return Download.error("ERROR: Offset and length must not be negative.");
+        }
+
+        String name = parts[1];
+        Path file;
+        try {
+            file = resolve(name);
+        } catch (InvalidPathException e) {
+            return Download.error("ERROR: " + e.getMessage());
+        }
+        if (!file.startsWith(rootDirectory)) {
+            return Download.error("ERROR: Operation attempted outside the virtual root directory.");
+        }
+        if (!Files.isRegularFile(file)) {
+            return Download.error("ERROR: Not a valid file or does not exist: " + name);
+        }
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            long size = channel.size();
+            if (offset > size) {
+                channel.close();
+                return Download.error("ERROR: Offset " + offset + " is beyond the end of the file (" + size + " bytes).");
+            }
+            long count = length < 0 ? size - offset : Math.min(length, size - offset);
+            String status = parts.length == 2
+                    ? "SUCCESS: Sending '" + file.getFileName() + "' (" + size + " bytes)."
+                    : "SUCCESS: Sending '" + file.getFileName() + "' bytes " + offset + "-" + (offset + count)
+                      + " of " + size + ".";
+            return new Download(status, channel, offset, count, ChannelIO.compressible(file.getFileName().toString()));
+        } catch (IOException e) {
+            return Download.error("ERROR: " + e.getMessage());
+        }
+    }
+
+    // Per-chunk CRC32C values of a file, sent as one frame: the file size
+    // (8 bytes) followed by one 4-byte checksum per chunk. frame is null
+    // when the request failed.
+    public static final class Checksums {
+        public final String status;
+        public final byte[] frame;
+
+        Checksums(String status, byte[] frame) {
+            this.status = status;
+            this.frame = frame;
+        }
+    }
+
+    private static final int MIN_CHECKSUM_CHUNK = 64 * 1024;
+    private static final int MAX_CHECKSUM_CHUNK = 64 * 1024 * 1024;
+
+    // sum <file> <chunk_size>
+    public Checksums checksums(String commandLine) {
+        String[] parts = commandLine.trim().split("\\s+");
+        if (parts.length != 3) {
+            return new Checksums("ERROR: Invalid 'sum' command format. Usage: sum file chunk_size", null);
+        }
+        int chunkSize;
+        try {
+            chunkSize = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            return new Checksums("ERROR: Chunk size must be a number.", null);
+        }
+        if (chunkSize < MIN_CHECKSUM_CHUNK || chunkSize > MAX_CHECKSUM_CHUNK) {
+            return new Checksums("ERROR: Chunk size must be between " + MIN_CHECKSUM_CHUNK + " and "
+                                 + MAX_CHECKSUM_CHUNK + " bytes.", null);
+        }
+
+        String name = parts[1];
+        Path file;
+        try {
+            file = resolve(name);
+        } catch (InvalidPathException e) {
+            return new Checksums("ERROR: " + e.getMessage(), null);
+        }
+        if (!file.startsWith(rootDirectory)) {
+            return new Checksums("ERROR: Operation attempted outside the virtual root directory.", null);
+        }
+        if (!Files.isRegularFile(file)) {
+            return new Checksums("ERROR: Not a valid file or does not exist: " + name, null);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunks = (size + chunkSize - 1) / chunkSize;
+            ByteBuffer frame = ByteBuffer.allocate(Math.toIntExact(8 + 4 * chunks));
+            frame.putLong(size);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.min(chunkSize, 1024 * 1024));
+            CRC32C crc = new CRC32C();
+            for (long chunk = 0; chunk < chunks; chunk++) {
+                crc.reset();
+                long position = chunk * chunkSize;
+                long end = Math.min(position + chunkSize, size);
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                    int n = channel.read(buffer, position);
+                    if (n < 0) throw new IOException("File shrank while it was being read.");
+                    buffer.flip();
+                    crc.update(buffer);
+                    position += n;
+                }
+                frame.putInt((int) crc.getValue());
+            }
+            return new Checksums("SUCCESS: Checksums of '" + file.getFileName() + "' (" + size + " bytes, "
+                                 + chunks + " chunks of " + chunkSize + ").", frame.array());
+        } catch (IOException | ArithmeticException e) {
+            return new Checksums("ERROR: " + e.getMessage(), null);
+        }
+    }
+
+    // like cd, a leading '/' is relative to the virtual root; throws
+    // InvalidPathException for names the file system cannot hold
+    private Path resolve(String path) {
+        return path.startsWith("/")
+                ? rootDirectory.resolve(path.substring(1)).normalize()
+                : currentDirectory.resolve(path).normalize();
+    }
+
+    // sig <file>: block signatures for 'sync' (see BlockSignatures); a file
+    // that does not exist yet has none, and is then sent whole
+    public Checksums signatures(String commandLine) {
+        String[] parts = commandLine.trim().split("\\s+");
+        if (parts.length != 2) {
+            return new Checksums("ERROR: Invalid 'sig' command format. Usage: sig file", null);
+        }
+        Path file;
+        try {
+            file = resolve(parts[1]);
+        } catch (InvalidPathException e) {
+            return new Checksums("ERROR: " + e.getMessage(), null);
+        }
+        if (!file.startsWith(rootDirectory) || file.equals(rootDirectory)) {
+            return new Checksums("ERROR: Operation attempted outside the virtual root directory.", null);
+        }
+        if (Files.isDirectory(file)) {
+            return new Checksums("ERROR: '" + parts[1] + "' is a directory.", null);
+        }
+        if (!Files.exists(file)) {
+            return new Checksums("SUCCESS: No '" + file.getFileName() + "' yet, it will be sent whole.",
+                                 BlockSignatures.none());
+        }
+        try {
+            byte[] frame = signatures.signatures(file);
+            int blocks = (frame.length - 16) / 20;
+            return new Checksums("SUCCESS: Signatures of '" + file.getFileName() + "' (" + blocks + " blocks).", frame);
+        } catch (IOException e) {
+            return new Checksums("ERROR: " + e.getMessage(), null);
+        }
+    }
+
+    // Uploads are received into a temporary file below the root and moved
+    // into place once complete, so a broken transfer never leaves a
+    // truncated file behind and readers never see a half-written one.
+    public Path newUploadFile() throws IOException {
+        return Files.createTempFile(rootDirectory, ".upload-", ".part");
+    }
+
+    public String completeUpload(String name, Path received, long size) {
+        try {
+            if (name == null) {
+                Files.deleteIfExists(received);
+                return "ERROR: Invalid 'put' command format. Usage: put file";
+            }
+            Path target = resolve(name); // like 'get' and 'sync'
+            if (!target.startsWith(rootDirectory) || target.equals(rootDirectory)) {
+                Files.deleteIfExists(received);
+                return "ERROR: Operation attempted outside the virtual root directory.";
+            }
+            if (Files.isDirectory(target)) {
+                Files.deleteIfExists(received);
+                return "ERROR: '" + name + "' is a directory.";
+            }
+            if (!Files.isDirectory(target.getParent())) {
+                Files.deleteIfExists(received);
+                return "ERROR: Destination directory does not exist: " + name;
+            }
+            Files.move(received, target, StandardCopyOption.ATOMIC_MOVE);
+            listings.invalidate(target.getParent());
+            return "SUCCESS: File '" + name + "' uploaded (" + size + " bytes).";
+        } catch (IOException | InvalidPathException e) {
+            try {
+                Files.deleteIfExists(received);
+            } catch (IOException ignored) {
+                // best effort
+            }
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    // Rebuilds name from its current blocks and the received delta into a
+    // temporary file, which then replaces it, like an upload
+    public String completeSync(String name, Path delta) {
+        Path rebuilt = null;
+        try {
+            if (name == null) {
+                return "ERROR: Invalid 'sync' command format. Usage: sync file";
+            }
+            Path target = resolve(name); // as 'sig' resolved it
+            if (!target.startsWith(rootDirectory) || target.equals(rootDirectory)) {
+                return "ERROR: Operation attempted outside the virtual root directory.";
+            }
+            if (Files.isDirectory(target)) {
+                return "ERROR: '" + name + "' is a directory.";
+            }
+            if (!Files.isDirectory(target.getParent())) {
+                return "ERROR: Destination directory does not exist: " + name;
+            }
+            rebuilt = newUploadFile();
+            BlockSignatures.Delta result = BlockSignatures.patch(Files.isRegularFile(target) ? target : null, delta, rebuilt);
+            Files.move(rebuilt, target, StandardCopyOption.ATOMIC_MOVE);
+            listings.invalidate(target.getParent());
+            return "SUCCESS: File '" + name + "' synced (" + result.size + " bytes, " + result.reused
+                   + " reused, " + result.literal + " sent).";
+        } catch (IOException | InvalidPathException e) {
+            return "ERROR: " + e.getMessage();
+        } finally {
+            try {
+                Files.deleteIfExists(delta);
+                if (rebuilt != null) Files.deleteIfExists(rebuilt);
+            } catch (IOException ignored) {
+                // best effort
+            }
+        }
+    }
+}
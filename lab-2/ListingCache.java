@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Bounded LRU cache of encoded 'dir' listings ("[DIR] a\n[FILE] b"), shared
+// by all sessions of a server. A cached directory is registered with a
+// WatchService, and any entry created or deleted in it drops its listing,
+// so changes made from outside the server show up within milliseconds.
+// Changes made by the server itself invalidate synchronously, so a
+// session always sees its own mkdir/copy/put in the next listing.
+public class ListingCache {
+    private final int maxEntries;
+    private final WatchService watcher;
+    private final Map<Path, String> listings;
+    private final Map<Path, WatchKey> keys = new LinkedHashMap<>();
+    // Bumped when the server changes a directory itself; a listing read
+    // meanwhile is not stored. External changes are caught by the watch
+    // key, which is registered before the read and cancelled on any event.
+    private long generation = 0;
+    private final List<Consumer<Path>> listeners = new CopyOnWriteArrayList<>();
+
+    public ListingCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.listings = new LinkedHashMap<>(16, 0.75f, true);
+        this.watcher = openWatcher();
+        if (watcher != null) {
+            Thread t = new Thread(this::watch, "listing-watcher");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private static WatchService openWatcher() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            AsyncLog.warn("Directory watching unavailable, listings will not be cached: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String listing(Path directory) throws IOException {
+        if (watcher == null) return read(directory);
+
+        long stamp;
+        synchronized (this) {
+            String cached = listings.get(directory);
+            if (cached != null) return cached;
+            stamp = generation;
+        }
+        // register before reading, so a change during the read is not missed
+        WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                          StandardWatchEventKinds.ENTRY_DELETE);
+        String listing = read(directory);
+        synchronized (this) {
+            if (generation == stamp && key.isValid()) {
+                keys.put(directory, key);
+                listings.put(directory, listing);
+                if (listings.size() > maxEntries) {
+                    drop(listings.keySet().iterator().next()); // least recently used
+                }
+            } else if (keys.get(directory) != key) {
+                key.cancel(); // not cached, so don't keep watching it
+            }
+        }
+        return listing;
+    }
+
+    // Listeners hear of every directory whose listing is dropped, changed or
+    // just evicted, so a listing handed out earlier may be stale from then
+    // on. They run under the cache lock and must not block.
+    public void addListener(Consumer<Path> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Path> listener) {
+        listeners.remove(listener);
+    }
+
+    // false when there is no WatchService, and so no caching and no listeners
+    public boolean watching() {
+        return watcher != null;
+    }
+
+    // while true, a change to the directory will reach the listeners
+    public synchronized boolean isCached(Path directory) {
+        return listings.containsKey(directory);
+    }
+
+    public synchronized void invalidate(Path directory) {
+        generation++;
+        drop(directory);
+    }
+
+    private synchronized void invalidateAll() {
+        generation++;
+        for (Path directory : listings.keySet().toArray(new Path[0])) {
+            drop(directory);
+        }
+    }
+
+    // Forgets the listing and stops watching the directory; it is
+    // registered again the next time it is listed. Keeps the number of
+    // watches bounded by the number of cached listings.
+    private void drop(Path directory) {
+        listings.remove(directory);
+        WatchKey key = keys.remove(directory);
+        if (key != null) key.cancel();
+        for (Consumer<Path> listener : listeners) {
+            listener.accept(directory);
+        }
+    }
+
+    private static String read(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries
+                    .map(path -> {
+                        String name = path.getFileName().toString();
+                        return Files.isDirectory(path) ? "[DIR] " + name : "[FILE] " + name;
+                    })
+                    .collect(Collectors.joining("\n"));
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    invalidateAll(); // events were lost, nothing cached can be trusted
+                    break;
+                }
+            }
+            synchronized (this) {
+                key.cancel(); // first, so a listing read in the meantime is not stored
+                drop(directory);
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator for FileServer (tcp) and FileServerUDP (udp).
+// Every session is a virtual thread with its own connection or socket
+// that sends one command at a time, picked at random from the mix.
+// The load is open-loop: each session owns a fixed schedule of send times
+// that together make up the target rate, and a command that has to wait
+// for a slow reply is sent late but timed from its scheduled start.
+// Latency measured that way includes the queueing a real client at that
+// rate would see, instead of hiding it (coordinated omission); the plain
+// service time from the actual send is reported next to it.
+//
+// All sessions work in a fresh directory load-<id> below the root, which
+// is left behind: cd goes to it, mkdir creates new directories in it and
+// copy copies a seed file from the root into the session's subdirectory.
+public class LoadClient {
+    private static final String DEFAULT_MIX = "dir=50,cd=20,mkdir=15,copy=15";
+    private static final String SEED_FILE = "testfile.txt"; // below the root, -Dload.seed overrides
+    private static final int UDP_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_DATAGRAM = 65535;
+
+    // one request/reply exchange; the reply's status line, or null if lost
+    private interface Transport extends AutoCloseable {
+        String exchange(String command) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private final String protocol;
+    private final String hostname;
+    private final int port;
+    private final String workDirectory = "load-" + Long.toString(System.currentTimeMillis(), 36);
+    private final CommandStats latency = new CommandStats();
+    private final CommandStats service = new CommandStats();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    private LoadClient(String protocol, String hostname, int port) {
+        this.protocol = protocol;
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 6 || args.length > 7) {
+            System.out.println("Usage: java LoadClient <tcp|udp> <server_IP_address> <port> <sessions> "
+                               + "<commands_per_second> <seconds> [mix, default " + DEFAULT_MIX + "]");
+            return;
+        }
+        String protocol = args[0].toLowerCase();
+        if (!protocol.equals("tcp") && !protocol.equals("udp")) {
+            System.err.println("Unknown protocol '" + args[0] + "', expected 'tcp' or 'udp'.");
+            return;
+        }
+        int port;
+        int sessions;
+        double rate;
+        double seconds;
+        try {
+            port = Integer.parseInt(args[2]);
+            sessions = Integer.parseInt(args[3]);
+            rate = Double.parseDouble(args[4]);
+            seconds = Double.parseDouble(args[5]);
+        } catch (NumberFormatException e) {
+            System.err.println("Port, sessions, rate and duration must be numbers.");
+            return;
+        }
+        if (sessions < 1 || rate <= 0 || seconds <= 0) {
+            System.err.println("Sessions, rate and duration must be positive.");
+            return;
+        }
+        Map<String, Integer> mix;
+        try {
+            mix = parseMix(args.length == 7 ? args[6] : DEFAULT_MIX);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
+        try {
+            new LoadClient(protocol, args[1], port).run(sessions, rate, seconds, mix);
+        } catch (UnknownHostException e) {
+            System.err.println("Unknown host: " + args[1]);
+        } catch (IOException e) {
+            System.err.println("I/O Error: " + e.getMessage());
+        }
+    }
+
+    // "dir=50,cd=20" -> weights of the commands in the mix
+    private static Map<String, Integer> parseMix(String text) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : text.split(",")) {
+            String[] pair = part.trim().split("=");
+            String command = pair[0].toLowerCase();
+            if (!List.of("dir", "cd", "mkdir", "copy").contains(command)) {
+                throw new IllegalArgumentException("Unknown command '" + pair[0] + "' in the mix, expected dir, cd, mkdir or copy.");
+            }
+            try {
+                int weight = pair.length == 2 ? Integer.parseInt(pair[1]) : -1;
+                if (weight < 0) throw new NumberFormatException();
+                if (weight > 0) mix.put(command, weight);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight in the mix: " + part);
+            }
+        }
+        if (mix.isEmpty()) throw new IllegalArgumentException("The mix is empty.");
+        return mix;
+    }
+
+    private Transport connect() throws IOException {
+        return protocol.equals("tcp") ? new TcpTransport(hostname, port) : new UdpTransport(hostname, port);
+    }
+
+    private void run(int sessions, double rate, double seconds, Map<String, Integer> mix) throws IOException {
+        String seed = System.getProperty("load.seed", SEED_FILE);
+        try (Transport setup = connect()) {
+            setup.exchange("cd /");
+            require(setup.exchange("mkdir " + workDirectory), "mkdir " + workDirectory);
+            if (mix.containsKey("copy")) {
+                require(setup.exchange("copy " + seed + " " + workDirectory), "copy " + seed + " " + workDirectory);
+            }
+        }
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        System.out.println(String.format(Locale.ROOT, "%d %s sessions at %.1f commands/s for %.1f s, mix %s, in /%s/",
+                                         sessions, protocol, rate, seconds, mix, workDirectory));
+
+        long interval = (long) (sessions * 1e9 / rate); // between two sends of one session
+        long start = System.nanoTime() + 100_000_000L; // let every session connect first
+        long end = start + (long) (seconds * 1e9);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            int session = i;
+            long first = start + interval * i / sessions; // spread the sessions over one interval
+            threads.add(Thread.ofVirtual().name("load-" + i).start(() -> {
+                try {
+                    runSession(session, first, interval, end, mix, total, seed);
+                } catch (IOException e) {
+                    System.err.println("Session " + session + " failed: " + e.getMessage());
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        report(rate, (Math.max(System.nanoTime(), end) - start) / 1e9);
+    }
+
+    private static void require(String status, String command) throws IOException {
+        if (status == null || !status.startsWith("SUCCESS")) {
+            throw new IOException("Setup command '" + command + "' failed: " + status);
+        }
+    }
+
+    private void runSession(int session, long first, long interval, long end, Map<String, Integer> mix, int total,
+                            String seed) throws IOException {
+        try (Transport transport = connect()) {
+            String own = "s" + session;
+            transport.exchange("cd /" + workDirectory);
+            transport.exchange("mkdir " + own);
+            long created = 0;
+            for (long intended = first; intended < end; intended += interval) {
+                long wait = intended - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+
+                String command = pick(mix, total);
+                String line;
+                switch (command) {
+                    case "cd":
+                        line = "cd /" + workDirectory;
+                        break;
+                    case "mkdir":
+                        line = "mkdir m" + session + "-" + created++;
+                        break;
+                    case "copy":
+                        line = "copy " + seed.substring(seed.lastIndexOf('/') + 1) + " " + own;
+                        break;
+                    default:
+                        line = "dir";
+                }
+                long sendTime = System.nanoTime();
+                String status = transport.exchange(line);
+                long now = System.nanoTime();
+                sent.incrementAndGet();
+                if (status == null) {
+                    lost.incrementAndGet();
+                }
+                latency.record(command, now - intended, 0, status);
+                service.record(command, now - sendTime, 0, status);
+            }
+        }
+    }
+
+    private static String pick(Map<String, Integer> mix, int total) {
+        int r = ThreadLocalRandom.current().nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) return entry.getKey();
+        }
+        throw new IllegalStateException();
+    }
+
+    private void report(double rate, double seconds) {
+        long commands = sent.get();
+        System.out.println(String.format(Locale.ROOT, "%d commands in %.1f s: %.1f commands/s (target %.1f), "
+                                         + "%d errors, %d without reply",
+                                         commands, seconds, commands / seconds, rate, latency.getErrorCount(), lost.get()));
+        System.out.println("Latency from the scheduled send (corrected for coordinated omission):");
+        for (String line : latency.getSummary()) System.out.println("  " + line);
+        System.out.println("Service time from the actual send:");
+        for (String line : service.getSummary()) System.out.println("  " + line);
+    }
+
+    // Protocol 2 when the server has it, so every reply is exactly one frame;
+    // on the line protocol 'dir' becomes 'dir --page 0', whose status line
+    // comes last
+    private static final class TcpTransport implements Transport {
+        private final SocketChannel channel;
+        private final ChannelIO io;
+        private final boolean framed;
+        private int nextId = 1;
+
+        TcpTransport(String hostname, int port) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            io = new ChannelIO(channel);
+            io.writeLine("proto 2");
+            String answer = io.readLine();
+            framed = answer != null && answer.startsWith("SUCCESS");
+        }
+
+        @Override
+        public String exchange(String command) throws IOException {
+            if (framed) {
+                io.writeRequest(nextId++, command);
+                io.readInt(); // id, always the one just sent
+                int statusLength = io.readInt();
+                long bodyLength = io.readLong();
+                String status = new String(io.readBytes(statusLength), StandardCharsets.UTF_8);
+                io.skip(bodyLength);
+                return status;
+            }
+            io.writeLine(command.equals("dir") ? "dir --page 0" : command);
+            String line;
+            while ((line = io.readLine()) != null) {
+                if (line.startsWith("SUCCESS") || line.startsWith("ERROR")) return line;
+            }
+            throw new IOException("Connection closed by the server.");
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                exchange("exit");
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    // One REQUEST per command (see UdpMessages); a reply that does not come
+    // within UDP_TIMEOUT_MILLIS counts as lost. The status line is in the
+    // first fragment, so the others are not waited for. Replies are matched
+    // by message id, so one that arrives after its command was given up
+    // is not taken for the next command's. FileServerUDP keeps a session
+    // per socket address, so every transport has its own working directory.
+    private static final class UdpTransport implements Transport {
+        private final DatagramSocket socket;
+        private final InetAddress address;
+        private final int port;
+        private final byte[] buffer = new byte[MAX_DATAGRAM];
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_DATAGRAM);
+        private int nextMessage = 1;
+
+        UdpTransport(String hostname, int port) throws IOException {
+            this.socket = new DatagramSocket();
+            this.address = InetAddress.getByName(hostname);
+            this.port = port;
+        }
+
+        @Override
+        public String exchange(String command) throws IOException {
+            int message = nextMessage++;
+            UdpMessages.request(request, message, command.getBytes(StandardCharsets.UTF_8));
+            socket.send(new DatagramPacket(request.array(), request.limit(), address, port));
+            long deadline = System.nanoTime() + UDP_TIMEOUT_MILLIS * 1_000_000L;
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            ByteBuffer data = ByteBuffer.wrap(buffer);
+            while (true) {
+                long left = (deadline - System.nanoTime()) / 1_000_000;
+                if (left <= 0) return null;
+                socket.setSoTimeout((int) left);
+                try {
+                    reply.setLength(buffer.length);
+                    socket.receive(reply);
+                } catch (SocketTimeoutException e) {
+                    return null;
+                }
+                // late replies to earlier commands, and later fragments, are skipped
+                if (reply.getLength() < UdpMessages.HEADER || buffer[0] != UdpTransfer.MARK
+                    || buffer[1] != UdpMessages.REPLY || data.getInt(2) != message || data.getInt(6) != 0) {
+                    continue;
+                }
+                String text = new String(buffer, UdpMessages.HEADER, reply.getLength() - UdpMessages.HEADER,
+                                         StandardCharsets.UTF_8);
+                int newline = text.indexOf('\n');
+                return newline < 0 ? text : text.substring(0, newline);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                exchange("exit"); // frees the session instead of leaving it to expire
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
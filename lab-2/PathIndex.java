@@ -0,0 +1,333 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Sorted index of every path below the virtual root, for the 'find'
+// command. Paths are kept relative ("a/b.txt") in a skip list, so the
+// paths below a directory form one contiguous range.
+//
+// Each directory is stored with its modification time. A directory's
+// mtime changes whenever an entry is created, deleted or renamed in it,
+// so at startup the saved index only needs one stat per directory: a
+// directory whose mtime still matches keeps its saved entries, and only
+// changed directories are listed again. Scans fork one task per
+// directory on a ForkJoinPool. Afterwards a WatchService on every
+// directory keeps the index current, and the index is written back to
+// disk periodically and at shutdown.
+public class PathIndex {
+    private static final String HEADER = "PATHINDEX 1 ";
+    private static final long SAVE_INTERVAL_SECONDS = 30;
+    private static final long RACY_MILLIS = 100;
+
+    private final Path rootDirectory;
+    private final Path indexFile;
+    // relative path -> true for directories
+    private final ConcurrentSkipListMap<String, Boolean> paths = new ConcurrentSkipListMap<>();
+    // relative directory ("" for the root) -> mtime in nanoseconds
+    private final ConcurrentSkipListMap<String, Long> directories = new ConcurrentSkipListMap<>();
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final WatchService watcher;
+    private volatile boolean ready = false;
+    private volatile boolean dirty = false;
+
+    public PathIndex(Path rootDirectory, Path indexFile) throws IOException {
+        this.rootDirectory = rootDirectory;
+        this.indexFile = indexFile;
+        this.watcher = rootDirectory.getFileSystem().newWatchService();
+    }
+
+    // Loads the saved index and brings it up to date in the background;
+    // find answers once this is done
+    public void start() {
+        Thread t = new Thread(() -> {
+            long started = System.nanoTime();
+            boolean loaded = load();
+            try {
+                pool.invoke(new Scan("", Mode.VERIFY));
+            } catch (RuntimeException e) {
+                // scans skip what they cannot read, so this is a bug; serve what was indexed
+                AsyncLog.error("Path index scan failed: " + e, e);
+            }
+            ready = true;
+            dirty = true;
+            save();
+            AsyncLog.info().append("Path index ready: ").append(paths.size()).append(" paths")
+                .append(loaded ? " (updated saved index) in " : " (full scan) in ")
+                .append((System.nanoTime() - started) / 1_000_000).append(" ms.").log();
+            watch();
+        }, "path-index");
+        t.setDaemon(true);
+        t.start();
+
+        Thread saver = new Thread(() -> {
+            while (true) {
+                try {
+                    TimeUnit.SECONDS.sleep(SAVE_INTERVAL_SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (ready && dirty) save();
+            }
+        }, "path-index-saver");
+        saver.setDaemon(true);
+        saver.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (ready && dirty) save();
+        }));
+    }
+
+    // find <pattern> below directory (relative, "" for the root). A pattern
+    // with '*' or '?' is a case-insensitive glob, otherwise it matches any
+    // name containing it; patterns with '/' match the path relative to
+    // directory.
+    public String find(String directory, String pattern, int limit, FileSession.LineSink out) throws IOException {
+        if (!ready) {
+            return "ERROR: The path index is still being built (" + paths.size() + " paths so far).";
+        }
+        boolean wholePath = pattern.indexOf('/') >= 0;
+        Pattern regex = compile(pattern, wholePath);
+        Map<String, Boolean> range = directory.isEmpty() ? paths : paths.subMap(directory + "/", directory + "0");
+        int matches = 0;
+        for (Map.Entry<String, Boolean> entry : range.entrySet()) {
+            String path = entry.getKey();
+            String subject = wholePath
+                    ? path.substring(directory.isEmpty() ? 0 : directory.length() + 1)
+                    : path.substring(path.lastIndexOf('/') + 1);
+            if (!regex.matcher(subject).matches()) continue;
+            if (matches == limit) {
+                return "SUCCESS: First " + limit + " matches for '" + pattern + "' shown.";
+            }
+            out.accept((entry.getValue() ? "[DIR] /" : "[FILE] /") + path);
+            matches++;
+        }
+        return "SUCCESS: " + matches + " matches for '" + pattern + "'.";
+    }
+
+    private static Pattern compile(String pattern, boolean wholePath) {
+        String glob = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+        if (glob.indexOf('*') < 0 && glob.indexOf('?') < 0) {
+            glob = "*" + glob + "*";
+        }
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+                regex.append(c == '?' ? "[^/]" : wholePath ? ".*" : "[^/]*");
+            } else {
+                literal.append(c);
+            }
+        }
+        regex.append(Pattern.quote(literal.toString()));
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    private String relative(Path path) {
+        return rootDirectory.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    private static String child(String directory, String name) {
+        return directory.isEmpty() ? name : directory + "/" + name;
+    }
+
+    // direct subdirectories of directory according to the index
+    private List<String> savedSubdirectories(String directory) {
+        List<String> result = new ArrayList<>();
+        Map<String, Long> below = directory.isEmpty()
+                ? directories.tailMap("", false)
+                : directories.subMap(directory + "/", directory + "0");
+        for (String path : below.keySet()) {
+            if (path.indexOf('/', directory.isEmpty() ? 0 : directory.length() + 1) < 0) result.add(path);
+        }
+        return result;
+    }
+
+    private void removeTree(String path) {
+        paths.remove(path);
+        paths.subMap(path + "/", path + "0").clear();
+        directories.remove(path);
+        directories.subMap(path + "/", path + "0").clear();
+    }
+
+    // How far a scan trusts the index: VERIFY (startup) lists only
+    // directories whose mtime changed; EVENT lists the directory and
+    // descends only into subdirectories it did not know, since the others
+    // are watched themselves; FULL lists everything (lost events).
+    private enum Mode { VERIFY, EVENT, FULL }
+
+    // the server's own upload temp files (FileSession.newUploadFile) in the root
+    private static boolean isUploadTemp(String directory, String name) {
+        return directory.isEmpty() && name.startsWith(".upload-") && name.endsWith(".part");
+    }
+
+    @SuppressWarnings("serial") // scans are never serialized
+    private final class Scan extends RecursiveAction {
+        final String directory;
+        final Mode mode;
+
+        Scan(String directory, Mode mode) {
+            this.directory = directory;
+            this.mode = mode;
+        }
+
+        @Override
+        protected void compute() {
+            Path dir = directory.isEmpty() ? rootDirectory : rootDirectory.resolve(directory);
+            List<Scan> children = new ArrayList<>();
+            try {
+                // watch before reading, so a change during the scan is not missed
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+                long mtime = Files.getLastModifiedTime(dir).to(TimeUnit.NANOSECONDS);
+                Long saved = directories.get(directory);
+                if (mode == Mode.VERIFY && saved != null && saved == mtime) {
+                    for (String subdirectory : savedSubdirectories(directory)) {
+                        children.add(new Scan(subdirectory, Mode.VERIFY));
+                    }
+                } else {
+                    list(dir, mtime, children);
+                }
+            } catch (NoSuchFileException e) {
+                removeTree(directory); // deleted while we looked at it
+                dirty = true;
+                return;
+            } catch (IOException e) {
+                // unreadable, or out of inotify watches: skip this subtree, keep the rest
+                AsyncLog.warn("Path index skips /" + directory + ": " + e);
+                return;
+            }
+            invokeAll(children);
+        }
+
+        private void list(Path dir, long mtime, List<Scan> children) throws IOException {
+            Set<String> present = new HashSet<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (isUploadTemp(directory, name)) continue;
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue; // deleted since it was listed; the gone-entries pass drops it
+                    }
+                    String path = child(directory, name);
+                    present.add(path);
+                    Boolean known = paths.get(path);
+                    if (known != null && known && !attributes.isDirectory()) {
+                        removeTree(path); // a directory was replaced by a file
+                    }
+                    paths.put(path, attributes.isDirectory());
+                    if (attributes.isDirectory() && (mode != Mode.EVENT || !directories.containsKey(path))) {
+                        children.add(new Scan(path, mode == Mode.FULL ? Mode.FULL : Mode.VERIFY));
+                    }
+                }
+            }
+            // entries that are gone, with everything below them
+            Map<String, Boolean> below = directory.isEmpty() ? paths : paths.subMap(directory + "/", directory + "0");
+            for (String path : new ArrayList<>(below.keySet())) {
+                int slash = path.indexOf('/', directory.isEmpty() ? 0 : directory.length() + 1);
+                if (slash < 0 && !present.contains(path)) removeTree(path);
+            }
+            // File timestamps are coarse: a change in the same tick as this
+            // listing would leave the mtime unchanged, so a fresh mtime is
+            // not trusted by the next startup
+            long age = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(mtime);
+            directories.put(directory, age < RACY_MILLIS ? -1L : mtime);
+            dirty = true;
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            boolean overflow = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+            }
+            Path dir = (Path) key.watchable();
+            key.reset();
+            try {
+                if (overflow) {
+                    pool.invoke(new Scan("", Mode.FULL)); // events were lost, rescan everything
+                } else if (dir.startsWith(rootDirectory) && Files.isDirectory(dir)) {
+                    pool.invoke(new Scan(relative(dir), Mode.EVENT));
+                }
+            } catch (RuntimeException e) {
+                AsyncLog.error("Path index update failed: " + e, e);
+            }
+        }
+    }
+
+    // Format: a header line with the root, then "D <mtime> <path>" for
+    // directories (the root is "D <mtime> ") and "F <path>" for files
+    private boolean load() {
+        if (!Files.isRegularFile(indexFile)) return false;
+        try (BufferedReader in = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null || !header.equals(HEADER + rootDirectory)) {
+                AsyncLog.info("Saved path index belongs to another root, rebuilding.");
+                return false;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("D ")) {
+                    int space = line.indexOf(' ', 2);
+                    String path = line.substring(space + 1);
+                    directories.put(path, Long.parseLong(line.substring(2, space)));
+                    if (!path.isEmpty()) paths.put(path, true);
+                } else if (line.startsWith("F ")) {
+                    paths.put(line.substring(2), false);
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            AsyncLog.warn("Could not read the saved path index, rebuilding: " + e.getMessage());
+            paths.clear();
+            directories.clear();
+            return false;
+        }
+    }
+
+    private synchronized void save() {
+        dirty = false;
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write(HEADER + rootDirectory);
+                out.newLine();
+                for (Map.Entry<String, Long> directory : directories.entrySet()) {
+                    out.write("D " + directory.getValue() + " " + directory.getKey());
+                    out.newLine();
+                }
+                for (Map.Entry<String, Boolean> path : paths.entrySet()) {
+                    if (path.getValue()) continue;
+                    out.write("F " + path.getKey());
+                    out.newLine();
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            AsyncLog.warn("Could not save the path index: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Commands with a message id, and replies of any size, for FileServerUDP.
+// A client that sends its command as
+//   REQUEST: mark, type, int message, command (UTF-8)
+// gets the reply as fragments of at most FRAGMENT_SIZE bytes, so nothing
+// is cut off and no reply depends on IP fragmentation, where one lost
+// piece loses the whole datagram:
+//   REPLY:   mark, type, int message, int index, int count, bytes
+// Fragments that do not come in time are asked for again with
+//   NACK:    mark, type, int message, int n, n * int index
+// Several commands can share one datagram, and their replies one reply:
+//   BATCH:   mark, type, int message, n * (short length, command)
+// is answered like a REQUEST, with n * (int length, reply) as the reply,
+// in the order of the commands.
+// The server keeps its last replies per client, within a byte budget, so
+// a repeated REQUEST is answered from them and a command never runs twice.
+// A NACK for a reply it no longer keeps is answered with
+//   GONE:    mark, type, int message
+// The mark and the type numbering are shared with UdpTransfer.
+public final class UdpMessages {
+    public static final byte REQUEST = 4;
+    public static final byte REPLY = 5;
+    public static final byte NACK = 6;
+    public static final byte BATCH = 7;
+    public static final byte GONE = 8;
+    public static final int FRAGMENT_SIZE = 1400;
+    public static final int HEADER = 14;
+    public static final int MAX_FRAGMENTS = 65536; // replies up to about 90 MB
+    public static final int MAX_NACKED = 256; // indices per NACK
+    public static final int MAX_BATCH = 64; // commands per BATCH
+    public static final int MAX_BATCH_BYTES = FRAGMENT_SIZE; // a BATCH is never split by IP
+
+    private UdpMessages() {
+    }
+
+    public static int fragments(int length) {
+        return Math.max(1, (length + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE);
+    }
+
+    // Sends the given fragments of a reply (all of them when indices is
+    // null) through pooled buffers
+    public static void send(UdpTransfer.Output out, BufferPool pool, SocketAddress target, int message, byte[] reply,
+                            int[] indices) throws IOException {
+        int count = fragments(reply.length);
+        int total = indices == null ? count : indices.length;
+        ByteBuffer packet = pool.acquire();
+        try {
+            for (int i = 0; i < total; i++) {
+                int index = indices == null ? i : indices[i];
+                if (index < 0 || index >= count) continue;
+                int offset = index * FRAGMENT_SIZE;
+                packet.clear();
+                packet.put(UdpTransfer.MARK).put(REPLY).putInt(message).putInt(index).putInt(count)
+                      .put(reply, offset, Math.min(FRAGMENT_SIZE, reply.length - offset))
+                      .flip();
+                out.send(packet, target); // a fragment the socket cannot take is NACKed later
+            }
+        } finally {
+            pool.release(packet);
+        }
+    }
+
+    public static ByteBuffer request(ByteBuffer packet, int message, byte[] command) {
+        return packet.clear().put(UdpTransfer.MARK).put(REQUEST).putInt(message).put(command).flip();
+    }
+
+    public static ByteBuffer batch(ByteBuffer packet, int message, List<byte[]> commands) {
+        packet.clear().put(UdpTransfer.MARK).put(BATCH).putInt(message);
+        for (byte[] command : commands) packet.putShort((short) command.length).put(command);
+        return packet.flip();
+    }
+
+    // Client side: the replies of a BATCH, in order
+    public static List<String> replies(byte[] reply) {
+        ByteBuffer buffer = ByteBuffer.wrap(reply);
+        List<String> replies = new ArrayList<>();
+        while (buffer.remaining() >= 4) {
+            int length = Math.min(buffer.getInt(), buffer.remaining());
+            replies.add(new String(reply, buffer.position(), length, StandardCharsets.UTF_8));
+            buffer.position(buffer.position() + length);
+        }
+        return replies;
+    }
+
+    // Client side: the fragments of one reply as they arrive, in any order
+    public static final class Reassembly {
+        public final int message;
+        private byte[][] fragments;
+        private int received;
+        private boolean gone; // the server no longer has the fragments
+
+        public Reassembly(int message) {
+            this.message = message;
+        }
+
+        // packet is positioned after the message id; false if it does not fit this reply
+        public boolean add(ByteBuffer packet) {
+            if (packet.remaining() < 8) return false;
+            int index = packet.getInt();
+            int count = packet.getInt();
+            if (count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count
+                || (fragments != null && count != fragments.length)) {
+                return false;
+            }
+            if (fragments == null) fragments = new byte[count][];
+            if (fragments[index] == null) {
+                fragments[index] = new byte[packet.remaining()];
+                packet.get(fragments[index]);
+                received++;
+            }
+            return true;
+        }
+
+        public boolean started() {
+            return fragments != null;
+        }
+
+        public boolean complete() {
+            return fragments != null && received == fragments.length;
+        }
+
+        public int received() {
+            return received;
+        }
+
+        public void gone() {
+            gone = true;
+        }
+
+        public boolean isGone() {
+            return gone;
+        }
+
+        // NACK for up to MAX_NACKED missing fragments, lowest first
+        public ByteBuffer nack(ByteBuffer packet) {
+            packet.clear().put(UdpTransfer.MARK).put(NACK).putInt(message);
+            int count = packet.position();
+            packet.putInt(0);
+            int n = 0;
+            for (int i = 0; i < fragments.length && n < MAX_NACKED; i++) {
+                if (fragments[i] == null) {
+                    packet.putInt(i);
+                    n++;
+                }
+            }
+            packet.putInt(count, n);
+            return packet.flip();
+        }
+
+        public byte[] bytes() {
+            int length = 0;
+            for (byte[] fragment : fragments) length += fragment.length;
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            for (byte[] fragment : fragments) {
+                System.arraycopy(fragment, 0, bytes, offset, fragment.length);
+                offset += fragment.length;
+            }
+            return bytes;
+        }
+    }
+
+    // Server side: the indices a NACK asks for; packet is positioned after the message id
+    public static int[] nacked(ByteBuffer packet) {
+        if (packet.remaining() < 4) return new int[0];
+        int n = Math.min(packet.getInt(), Math.min(MAX_NACKED, packet.remaining() / 4));
+        int[] indices = new int[Math.max(n, 0)];
+        for (int i = 0; i < indices.length; i++) indices[i] = packet.getInt();
+        Arrays.sort(indices);
+        return indices;
+    }
+}
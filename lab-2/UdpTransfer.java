@@ -0,0 +1,395 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Random;
+
+// Reliable file download over UDP, used by FileServerUDP 'get' and
+// FileClientUDP. After the text reply to 'get' the file goes out as
+// numbered chunks, and the client acknowledges every one it receives:
+//   DATA:   mark, type, int transfer, int seq, long timestamp, chunk
+//   ACK:    mark, type, int transfer, int next expected seq, int window,
+//           long echoed timestamp, byte n, n * (int first, int end) SACK
+//   CANCEL: mark, type, int transfer
+// Commands are text, so the leading 0 mark tells transfer packets apart.
+// The sender keeps a window of chunks in flight, sized like TCP's: slow
+// start, then one more chunk per round trip, halved when a chunk is lost
+// (see detectLosses) and back to one chunk when the retransmission timer
+// fires. The timer follows the measured round trip (RFC 6298), taken from
+// echoed timestamps, so retransmitted chunks measure correctly too.
+public final class UdpTransfer {
+    public static final byte MARK = 0;
+    public static final byte DATA = 1;
+    public static final byte ACK = 2;
+    public static final byte CANCEL = 3;
+    public static final int CHUNK_SIZE = 1400; // fits a 1500-byte Ethernet frame with all headers
+    public static final int DATA_HEADER = 18;
+    public static final int MAX_SACK_BLOCKS = 32;
+    public static final int MAX_ACK = 23 + MAX_SACK_BLOCKS * 8;
+    public static final int RECEIVE_WINDOW = 4096; // chunks a receiver takes ahead of the first missing one
+
+    private static final int INITIAL_WINDOW = 10;
+    private static final int MIN_WINDOW = 2;
+    private static final int DUP_THRESHOLD = 3;
+    private static final long INITIAL_RTO = 200_000_000L;
+    private static final long MIN_RTO = 10_000_000L; // TCP's 200 ms is what makes it slow on lossy LANs
+    private static final long MAX_RTO = 2_000_000_000L;
+    private static final int MAX_TIMEOUTS = 8; // in a row without progress before giving up
+
+    private UdpTransfer() {
+    }
+
+    // Where a Sender's packets go; false when the socket buffer is full
+    public interface Output {
+        boolean send(ByteBuffer packet, SocketAddress target) throws IOException;
+    }
+
+    // Server side of one transfer. Not thread-safe: the server drives all
+    // senders from one thread. Only done() and acknowledged() are read by
+    // other threads, so they rest on volatile flags.
+    public static final class Sender implements Closeable {
+        public final int id;
+        public final SocketAddress client;
+        public final String status; // the reply to 'get' that announced the transfer
+        private final FileChannel file;
+        private final long position;
+        private final long length;
+        private final int chunks;
+        private final Output out;
+        private final ByteBuffer packet = ByteBuffer.allocateDirect(DATA_HEADER + CHUNK_SIZE);
+
+        private final BitSet acked = new BitSet();
+        private final BitSet lost = new BitSet();
+        private final long[] sentAt = new long[RECEIVE_WINDOW]; // by seq % RECEIVE_WINDOW, outstanding chunks only
+        private int cumulative; // every chunk below is acknowledged
+        private int next; // first chunk never sent
+        private int flight; // sent, neither acknowledged nor presumed lost
+        private int highestAcked = -1;
+        private long latestAckedSend; // send time of the most recently sent chunk known to have arrived
+        private int latestAckedSeq = -1; // and its seq, which orders chunks sent in the same burst
+        private int window = RECEIVE_WINDOW;
+
+        private double cwnd = INITIAL_WINDOW;
+        private double ssthresh = Double.MAX_VALUE;
+        private int recoveryEnd = -1; // in recovery until this chunk is acknowledged
+        private long srtt = -1;
+        private long rttvar;
+        private long rto = INITIAL_RTO;
+        private long lastProgress;
+        private int timeouts;
+
+        private volatile boolean acknowledged; // any ACK yet
+        private volatile boolean finished; // failed, or every chunk acknowledged
+        private boolean failed;
+        private final long started = System.nanoTime();
+        private long sent;
+        private long retransmitted;
+        private long timeoutCount;
+
+        public Sender(int id, SocketAddress client, FileChannel file, long position, long length, String status,
+                      Output out) {
+            this.id = id;
+            this.client = client;
+            this.status = status;
+            this.file = file;
+            this.position = position;
+            this.length = length;
+            this.chunks = chunks(length);
+            this.out = out;
+            this.finished = chunks == 0;
+        }
+
+        public static int chunks(long length) {
+            return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+
+        public boolean acknowledged() {
+            return acknowledged;
+        }
+
+        public boolean done() {
+            return finished;
+        }
+
+        public boolean failed() {
+            return failed;
+        }
+
+        public void start(long now) throws IOException {
+            lastProgress = now;
+            sendMore(now);
+        }
+
+        public void cancel() {
+            failed = true;
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        // packet is positioned after the transfer id
+        public void onAck(ByteBuffer ack, long now) throws IOException {
+            if (done()) return;
+            acknowledged = true;
+            int expected = ack.getInt();
+            int advertised = ack.getInt();
+            long echo = ack.getLong();
+            int blocks = ack.get();
+            if (echo > 0 && echo <= now) measured(now - echo);
+            window = Math.max(1, Math.min(advertised, RECEIVE_WINDOW));
+
+            int newly = 0;
+            if (expected > cumulative && expected <= next) {
+                newly += acknowledge(cumulative, expected);
+            }
+            for (int i = 0; i < blocks && ack.remaining() >= 8; i++) {
+                int first = Math.max(ack.getInt(), cumulative);
+                int end = Math.min(ack.getInt(), next);
+                if (first < end) {
+                    newly += acknowledge(first, end);
+                    highestAcked = Math.max(highestAcked, end - 1);
+                }
+            }
+            cumulative = acked.nextClearBit(cumulative); // only chunks below next are ever set
+            if (cumulative == chunks) finished = true;
+            highestAcked = Math.max(highestAcked, cumulative - 1);
+
+            if (newly > 0) {
+                lastProgress = now;
+                timeouts = 0;
+                if (recoveryEnd >= 0 && cumulative >= recoveryEnd) recoveryEnd = -1;
+                if (recoveryEnd < 0) {
+                    cwnd += cwnd < ssthresh ? newly : (double) newly / cwnd;
+                }
+            }
+            detectLosses();
+            sendMore(now);
+        }
+
+        // Retransmission timer, called every few milliseconds
+        public void tick(long now) throws IOException {
+            if (done()) return;
+            if (next > cumulative && now - lastProgress > rto) {
+                if (++timeouts > MAX_TIMEOUTS) {
+                    cancel();
+                    return;
+                }
+                timeoutCount++;
+                for (int seq = acked.nextClearBit(cumulative); seq < next; seq = acked.nextClearBit(seq + 1)) {
+                    lost.set(seq);
+                }
+                flight = 0;
+                ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+                cwnd = 1;
+                recoveryEnd = -1;
+                rto = Math.min(rto * 2, MAX_RTO);
+                lastProgress = now;
+            }
+            sendMore(now); // also resumes after a full socket buffer
+        }
+
+        // e.g. "52428800 bytes in 0.8 s (62.5 MB/s), 37450 chunks sent, 12 again, 0 timeouts, rtt 0.21 ms"
+        public String summary() {
+            double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+            return String.format(Locale.ROOT, "%d bytes in %.1f s (%.1f MB/s), %d chunks sent, %d again, %d timeouts, rtt %.2f ms",
+                    length, seconds, length / seconds / 1e6, sent, retransmitted, timeoutCount,
+                    srtt < 0 ? 0 : srtt / 1e6);
+        }
+
+        private int acknowledge(int first, int end) {
+            int newly = 0;
+            for (int seq = acked.nextClearBit(first); seq < end; seq = acked.nextClearBit(seq + 1)) {
+                newly++;
+                if (!lost.get(seq)) flight--;
+                if (sentBefore(latestAckedSend, latestAckedSeq, sentAt[seq % RECEIVE_WINDOW], seq)) {
+                    latestAckedSend = sentAt[seq % RECEIVE_WINDOW];
+                    latestAckedSeq = seq;
+                }
+            }
+            acked.set(first, end);
+            lost.clear(first, end);
+            return newly;
+        }
+
+        // A burst shares one timestamp, so like RACK a tie goes to the lower seq
+        private static boolean sentBefore(long sent, int seq, long otherSent, int otherSeq) {
+            return sent < otherSent || (sent == otherSent && seq < otherSeq);
+        }
+
+        // A chunk is lost once a chunk sent after it arrived, and either
+        // DUP_THRESHOLD chunks above it arrived or it was sent more than a
+        // quarter round trip earlier (RACK), which also finds a lost
+        // retransmission without waiting for the timer
+        private void detectLosses() {
+            boolean found = false;
+            long reorder = srtt < 0 ? 0 : srtt / 4;
+            for (int seq = acked.nextClearBit(cumulative); seq < highestAcked; seq = acked.nextClearBit(seq + 1)) {
+                long sent = sentAt[seq % RECEIVE_WINDOW];
+                if (!lost.get(seq) && sentBefore(sent, seq, latestAckedSend, latestAckedSeq)
+                    && (seq + DUP_THRESHOLD <= highestAcked || sent + reorder < latestAckedSend)) {
+                    lost.set(seq);
+                    flight--;
+                    found = true;
+                }
+            }
+            if (found && recoveryEnd < 0) {
+                // once per window of data, however many chunks it lost
+                ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+                cwnd = ssthresh;
+                recoveryEnd = next;
+            }
+        }
+
+        private void sendMore(long now) throws IOException {
+            int limit = Math.min((int) cwnd, window);
+            while (flight < limit) {
+                int seq = lost.nextSetBit(cumulative);
+                boolean again = seq >= 0 && seq < next;
+                if (!again) {
+                    if (next >= chunks || next >= cumulative + window) return;
+                    seq = next;
+                }
+                if (!sendChunk(seq, now)) return; // socket buffer full, the next tick resumes
+                if (again) {
+                    lost.clear(seq);
+                    retransmitted++;
+                } else {
+                    next++;
+                }
+                flight++;
+            }
+        }
+
+        private boolean sendChunk(int seq, long now) throws IOException {
+            long offset = (long) seq * CHUNK_SIZE;
+            int size = (int) Math.min(CHUNK_SIZE, length - offset);
+            packet.clear();
+            packet.put(MARK).put(DATA).putInt(id).putInt(seq).putLong(now);
+            packet.limit(DATA_HEADER + size);
+            while (packet.hasRemaining()) {
+                if (file.read(packet, position + offset + packet.position() - DATA_HEADER) < 0) {
+                    throw new IOException("File shrank while it was being sent.");
+                }
+            }
+            packet.flip();
+            if (!out.send(packet, client)) return false;
+            sentAt[seq % RECEIVE_WINDOW] = now;
+            sent++;
+            return true;
+        }
+
+        private void measured(long rtt) {
+            if (srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+                srtt = (7 * srtt + rtt) / 8;
+            }
+            rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + 4 * rttvar));
+        }
+    }
+
+    // Client side of one transfer: writes chunks where they belong in the
+    // file and builds the ACK for what has arrived so far
+    public static final class Receiver {
+        public final int id;
+        public final long length;
+        private final int chunks;
+        private final FileChannel file;
+        private final BitSet received = new BitSet();
+        private int cumulative;
+        private long duplicates;
+
+        public Receiver(int id, long length, FileChannel file) {
+            this.id = id;
+            this.length = length;
+            this.chunks = Sender.chunks(length);
+            this.file = file;
+        }
+
+        public boolean complete() {
+            return cumulative == chunks;
+        }
+
+        public long duplicates() {
+            return duplicates;
+        }
+
+        // true when everything that arrived is contiguous
+        public boolean inOrder() {
+            return received.length() == cumulative;
+        }
+
+        // packet is positioned after the transfer id; returns the sender's timestamp
+        public long accept(ByteBuffer data) throws IOException {
+            int seq = data.getInt();
+            long timestamp = data.getLong();
+            long offset = (long) seq * CHUNK_SIZE;
+            if (seq < 0 || seq >= chunks || seq >= cumulative + RECEIVE_WINDOW
+                || data.remaining() != Math.min(CHUNK_SIZE, length - offset)) {
+                return 0; // not ours to take
+            }
+            if (received.get(seq)) {
+                duplicates++;
+                return timestamp;
+            }
+            while (data.hasRemaining()) {
+                file.write(data, offset + data.position() - DATA_HEADER);
+            }
+            received.set(seq);
+            cumulative = received.nextClearBit(cumulative);
+            return timestamp;
+        }
+
+        // the next expected chunk and up to MAX_SACK_BLOCKS ranges above it
+        public ByteBuffer ack(ByteBuffer packet, long echo) {
+            packet.clear();
+            packet.put(MARK).put(ACK).putInt(id).putInt(cumulative).putInt(RECEIVE_WINDOW).putLong(echo);
+            int count = packet.position();
+            packet.put((byte) 0);
+            int blocks = 0;
+            for (int first = received.nextSetBit(cumulative); first >= 0 && blocks < MAX_SACK_BLOCKS;
+                 first = received.nextSetBit(first)) {
+                int end = received.nextClearBit(first);
+                packet.putInt(first).putInt(end);
+                blocks++;
+                first = end;
+            }
+            packet.put(count, (byte) blocks);
+            return packet.flip();
+        }
+    }
+
+    // Packet loss simulator for tests on a lossless link: with
+    // -Dudp.loss=0.05 every datagram a side sends is dropped with
+    // probability 0.05 (-Dudp.loss.seed makes the pattern repeatable)
+    public static final class Loss {
+        private final double probability;
+        private final Random random;
+
+        public Loss(double probability, long seed) {
+            this.probability = probability;
+            this.random = new Random(seed);
+        }
+
+        public static Loss fromProperties() {
+            double probability = Double.parseDouble(System.getProperty("udp.loss", "0"));
+            return new Loss(probability, Long.getLong("udp.loss.seed", System.nanoTime()));
+        }
+
+        public boolean active() {
+            return probability > 0;
+        }
+
+        public synchronized boolean drop() {
+            return probability > 0 && random.nextDouble() < probability;
+        }
+    }
+}
@@ -2,14 +2,22 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
+// Thread-per-client server; StockServerNIO serves the same protocol and
+// prices from a few event loops for many thousands of subscribers.
 public class StockServer {
-    private static final int PORT = 8888;
+    static final int PORT = 8888;
+    static final int MAX_SYMBOLS = 5; // per client
     private static final Map<String, Double> stockPrices = new ConcurrentHashMap<>();
     private static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
     private static final Random random = new Random();
 
-    private static final String[] AVAILABLE_STOCKS = {
+    // where price updates go, (symbol, message)
+    private static volatile BiConsumer<String, String> publisher = StockServer::sendToHandlers;
+
+    static final String[] AVAILABLE_STOCKS = {
         "AMZN", "TSLA", "AAPL", "GOOGL", "MSFT",
         "META", "NFLX", "NVDA", "BABA", "INTC", "AMD",
         "IBM", "ORCL", "CSCO", "SAP", "ADBE",
@@ -17,37 +25,40 @@ public class StockServer {
     };
     
     public static void main(String[] args) {
-        System.out.println("/\\/\\/\\ Stock Monitoring Server /\\/\\/\\");
-        System.out.println("Starting server on port " + PORT + "...");
+        AsyncLog.info("/\\/\\/\\ Stock Monitoring Server /\\/\\/\\");
+        AsyncLog.info("Starting server on port " + PORT + "...");
         
         initializeStocks();
-
-        new Thread(new PriceUpdater()).start(); // price update thread
+        startPriceUpdater(StockServer::sendToHandlers);
         
         try (ServerSocket serverSocket = new ServerSocket(PORT)) { // client conns
-            System.out.println("Server started successfully!");
-            System.out.println("Waiting for clients...\n");
+            AsyncLog.info("Server started successfully!");
+            AsyncLog.info("Waiting for clients...\n");
             
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 String clientId = "Client-" + System.currentTimeMillis();
-                System.out.println("[SERVER] New connection: " + clientId);
+                AsyncLog.info("[SERVER] New connection: " + clientId);
                 
                 ClientHandler handler = new ClientHandler(clientSocket, clientId);
                 clients.put(clientId, handler);
                 new Thread(handler).start();
             }
         } catch (IOException e) {
-            System.err.println("[ERROR] Server error: " + e.getMessage());
-            e.printStackTrace();
+            AsyncLog.error("[ERROR] Server error: " + e.getMessage(), e);
         }
     }
     
-    private static void initializeStocks() {
+    static void initializeStocks() {
         for (String symbol : AVAILABLE_STOCKS) {
             stockPrices.put(symbol, 100.0 + random.nextDouble() * 400.0);
         }
-        System.out.println("[SERVER] Initialized " + AVAILABLE_STOCKS.length + " stocks");
+        AsyncLog.info("[SERVER] Initialized " + AVAILABLE_STOCKS.length + " stocks");
+    }
+
+    static void startPriceUpdater(BiConsumer<String, String> target) {
+        publisher = target;
+        new Thread(new PriceUpdater()).start(); // price update thread
     }
     
     static void broadcastPriceUpdate(String symbol, double oldPrice, double newPrice) {
@@ -57,6 +68,10 @@ public class StockServer {
         String message = String.format("UPDATE|%s|%.2f|%.2f|%.2f", 
             symbol, newPrice, change, percentChange);
         
+        publisher.accept(symbol, message);
+    }
+    
+    private static void sendToHandlers(String symbol, String message) {
         for (ClientHandler client : clients.values()) {
             if (client.isMonitoring(symbol)) {
                 client.sendMessage(message);
@@ -66,8 +81,8 @@ public class StockServer {
     
     static void removeClient(String clientId) {
         clients.remove(clientId);
-        System.out.println("[SERVER] Client disconnected: " + clientId);
-        System.out.println("[SERVER] Active clients: " + clients.size());
+        AsyncLog.info("[SERVER] Client disconnected: " + clientId);
+        AsyncLog.info("[SERVER] Active clients: " + clients.size());
     }
     
     static double getStockPrice(String symbol) {
@@ -78,11 +93,89 @@ public class StockServer {
         return stockPrices.containsKey(symbol);
     }
     
+    static String welcome() {
+        return "WELCOME|Connected to Stock Server. Available commands: ADD, DEL, QUIT";
+    }
+    
+    static String stockList() {
+        return "INFO|Available stocks: " + String.join(", ", AVAILABLE_STOCKS);
+    }
+    
+    // Runs one client command against its watchlist, replying through
+    // reply; false once the client asked to QUIT. Shared by ClientHandler
+    // and StockServerNIO.
+    static boolean handleCommand(String clientId, String command, Set<String> monitoredSymbols,
+                                 Consumer<String> reply) {
+        String[] parts = command.split("\\s+");
+        if (parts.length == 0) return true;
+        
+        String cmd = parts[0].toUpperCase();
+        
+        switch (cmd) {
+            case "ADD" -> {
+                if (parts.length < 2) {
+                    reply.accept("ERROR|Usage: ADD <SYMBOL>");
+                    return true;
+                }
+                handleAdd(clientId, parts[1].toUpperCase(), monitoredSymbols, reply);
+            }
+                
+            case "DEL" -> {
+                if (parts.length < 2) {
+                    reply.accept("ERROR|Usage: DEL <SYMBOL>");
+                    return true;
+                }
+                handleDelete(clientId, parts[1].toUpperCase(), monitoredSymbols, reply);
+            }
+                
+            case "QUIT" -> {
+                reply.accept("BYE|Disconnecting...");
+                return false;
+            }
+                
+            default -> reply.accept("ERROR|Unknown command: " + cmd);
+        }
+        return true;
+    }
+    
+    private static void handleAdd(String clientId, String symbol, Set<String> monitoredSymbols,
+                                  Consumer<String> reply) {
+        if (!isValidSymbol(symbol)) {
+            reply.accept("ERROR|Invalid symbol: " + symbol);
+            return;
+        }
+        
+        if (monitoredSymbols.size() >= MAX_SYMBOLS) {
+            reply.accept("ERROR|Maximum " + MAX_SYMBOLS + " symbols allowed");
+            return;
+        }
+        
+        if (monitoredSymbols.contains(symbol)) {
+            reply.accept("ERROR|Already monitoring: " + symbol);
+            return;
+        }
+        
+        monitoredSymbols.add(symbol);
+        double price = getStockPrice(symbol);
+        reply.accept(String.format("ADDED|%s|%.2f", symbol, price));
+        AsyncLog.debug().append('[').append(clientId).append("] Added: ").append(symbol).log();
+    }
+    
+    private static void handleDelete(String clientId, String symbol, Set<String> monitoredSymbols,
+                                     Consumer<String> reply) {
+        if (monitoredSymbols.remove(symbol)) {
+            reply.accept("DELETED|" + symbol);
+            AsyncLog.debug().append('[').append(clientId).append("] Deleted: ").append(symbol).log();
+        } else {
+            reply.accept("ERROR|Not monitoring: " + symbol);
+        }
+    }
+    
     // thread that simulates price updates
     static class PriceUpdater implements Runnable {
         @Override
         public void run() {
-            System.out.println("[UPDATER] Price updater started\n");
+            AsyncLog.info("[UPDATER] Price updater started\n");
             
             while (true) {
                 try {
@@ -98,8 +191,9 @@ public class StockServer {
                     
                     stockPrices.put(symbol, newPrice);
                     
-                    System.out.printf("[UPDATER] %s: %.2f -> %.2f (%.2f%%)\n", 
-                        symbol, oldPrice, newPrice, (change/oldPrice)*100);
+                    AsyncLog.debug().append("[UPDATER] ").append(symbol).append(": ")
+                        .append(oldPrice, 2).append(" -> ").append(newPrice, 2)
+                        .append(" (").append((change/oldPrice)*100, 2).append("%)").log();
                     
                     broadcastPriceUpdate(symbol, oldPrice, newPrice);
                     
@@ -130,82 +224,25 @@ public class StockServer {
                 out = new PrintWriter(socket.getOutputStream(), true);
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 
-                sendMessage("WELCOME|Connected to Stock Server. Available commands: ADD, DEL, QUIT");
-                sendMessage("INFO|Available stocks: " + String.join(", ", AVAILABLE_STOCKS));
+                sendMessage(welcome());
+                sendMessage(stockList());
                 
                 String inputLine;
                 while ((inputLine = in.readLine()) != null) {
-                    System.out.println("[" + clientId + "] Received: " + inputLine);
+                    AsyncLog.debug().append('[').append(clientId).append("] Received: ").append(inputLine).log();
                     handleCommand(inputLine.trim());
                 }
                 
             } catch (IOException e) {
-                System.out.println("[" + clientId + "] Connection error: " + e.getMessage());
+                AsyncLog.info("[" + clientId + "] Connection error: " + e.getMessage());
             } finally {
                 cleanup();
             }
         }
         
         private void handleCommand(String command) {
-            String[] parts = command.split("\\s+");
-            if (parts.length == 0) return;
-            
-            String cmd = parts[0].toUpperCase();
-            
-            switch (cmd) {
-                case "ADD" -> {
-                    if (parts.length < 2) {
-                        sendMessage("ERROR|Usage: ADD <SYMBOL>");
-                        return;
-                    }
-                    handleAdd(parts[1].toUpperCase());
-                }
-                    
-                case "DEL" -> {
-                    if (parts.length < 2) {
-                        sendMessage("ERROR|Usage: DEL <SYMBOL>");
-                        return;
-                    }
-                    handleDelete(parts[1].toUpperCase());
-                }
-                    
-                case "QUIT" -> {
-                    sendMessage("BYE|Disconnecting...");
-                    cleanup();
-                }
-                    
-                default -> sendMessage("ERROR|Unknown command: " + cmd);
-            }
-        }
-        
-        private void handleAdd(String symbol) {
-            if (!isValidSymbol(symbol)) {
-                sendMessage("ERROR|Invalid symbol: " + symbol);
-                return;
-            }
-            
-            if (monitoredSymbols.size() >= 5) {
-                sendMessage("ERROR|Maximum 5 symbols allowed");
-                return;
-            }
-            
-            if (monitoredSymbols.contains(symbol)) {
-                sendMessage("ERROR|Already monitoring: " + symbol);
-                return;
-            }
-            
-            monitoredSymbols.add(symbol);
-            double price = getStockPrice(symbol);
-            sendMessage(String.format("ADDED|%s|%.2f", symbol, price));
-            System.out.println("[" + clientId + "] Added: " + symbol);
-        }
-        
-        private void handleDelete(String symbol) {
-            if (monitoredSymbols.remove(symbol)) {
-                sendMessage("DELETED|" + symbol);
-                System.out.println("[" + clientId + "] Deleted: " + symbol);
-            } else {
-                sendMessage("ERROR|Not monitoring: " + symbol);
+            if (!StockServer.handleCommand(clientId, command, monitoredSymbols, this::sendMessage)) {
+                cleanup();
             }
         }
         
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Non-blocking variant of StockServer for many thousands of subscribers:
+// a few event-loop threads own all connections on Selectors, instead of
+// a thread and an autoflushing PrintWriter per client.
+// A price update is encoded once and handed to every loop, which appends
+// it to the write buffer of each subscriber on that loop and writes the
+// buffers after the whole batch of updates, so updates queued together
+// leave in one write. What the socket does not take waits in the buffer
+// for OP_WRITE; a client that lets MAX_BUFFERED bytes pile up is
+// disconnected rather than slowing the others down.
+public class StockServerNIO {
+    private static final int BACKLOG = 4096;
+    private static final int READ_BUFFER_SIZE = 8192; // per loop, shared by its connections
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final int WRITE_BUFFER_SIZE = 256; // per connection, grows up to MAX_BUFFERED
+    private static final int MAX_BUFFERED = 64 * 1024;
+    private static final long ACCEPT_RETRY_MILLIS = 100; // after a failed accept, e.g. out of file descriptors
+
+    private final EventLoop[] loops;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong clientIds = new AtomicLong();
+
+    public StockServerNIO(int loopCount) throws IOException {
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    public void start(int port) {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), BACKLOG);
+            for (EventLoop loop : loops) {
+                Thread t = new Thread(loop, "stock-loop-" + loop.id);
+                t.setDaemon(true);
+                t.start();
+            }
+            StockServer.startPriceUpdater(this::publish);
+            AsyncLog.info("Server started successfully! (" + loops.length + " event loops)");
+            AsyncLog.info("Waiting for clients...\n");
+
+            // accepting is cheap: do it here and spread connections over the loops
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // the server socket is fine, so wait for descriptors to free up and go on
+                    AsyncLog.error("[ERROR] Error accepting client: " + e.getMessage());
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    AsyncLog.error("[ERROR] Error setting up client: " + e.getMessage());
+                    closeQuietly(channel);
+                    continue;
+                }
+                loops[next++ % loops.length].register(channel, "Client-" + clientIds.incrementAndGet());
+            }
+        } catch (IOException e) {
+            AsyncLog.error("[ERROR] Server error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // runs on the price updater thread
+    private void publish(String symbol, String message) {
+        byte[] update = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        for (EventLoop loop : loops) {
+            loop.execute(() -> loop.publish(symbol, update));
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        final int id;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final List<Connection> dirty = new ArrayList<>(); // written to since the last flush
+        final Map<String, List<Connection>> subscribers = new HashMap<>(); // by symbol, on this loop
+
+        EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        // runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel, String clientId) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, this, clientId);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    active.incrementAndGet();
+                    AsyncLog.info("[SERVER] New connection: " + clientId);
+                    connection.send(StockServer.welcome());
+                    connection.send(StockServer.stockList());
+                } catch (IOException e) {
+                    AsyncLog.error("[ERROR] Error registering client: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // backwards, as a slow consumer unsubscribes itself while it is queued to
+        void publish(String symbol, byte[] update) {
+            List<Connection> connections = subscribers.get(symbol);
+            if (connections == null) return;
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                connections.get(i).queue(update);
+            }
+        }
+
+        void subscribe(String symbol, Connection connection) {
+            subscribers.computeIfAbsent(symbol, s -> new ArrayList<>()).add(connection);
+        }
+
+        void unsubscribe(String symbol, Connection connection) {
+            List<Connection> connections = subscribers.get(symbol);
+            if (connections == null) return;
+            connections.remove(connection);
+            if (connections.isEmpty()) subscribers.remove(symbol);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.onReadable();
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close(e.getMessage());
+                        }
+                    }
+                    flushDirty();
+                } catch (IOException e) {
+                    AsyncLog.error("[ERROR] Event loop " + id + " error: " + e.getMessage());
+                }
+            }
+        }
+
+        // one write per connection for everything queued since the last one
+        void flushDirty() {
+            for (Connection connection : dirty) {
+                connection.dirty = false;
+                try {
+                    connection.flush();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close(e.getMessage());
+                }
+            }
+            dirty.clear();
+        }
+    }
+
+    // Per-connection state, only touched on its event loop's thread
+    private final class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final String clientId;
+        final Set<String> monitoredSymbols = new Subscriptions(this);
+        SelectionKey key;
+
+        byte[] line; // a command line still being read, allocated on first use
+        int lineLength = 0;
+        ByteBuffer out; // bytes the socket has not taken yet, in write mode
+        boolean dirty = false;
+        boolean closeAfterWrite = false;
+        boolean closed = false;
+
+        Connection(SocketChannel channel, EventLoop loop, String clientId) {
+            this.channel = channel;
+            this.loop = loop;
+            this.clientId = clientId;
+        }
+
+        void onReadable() throws IOException {
+            ByteBuffer readBuffer = loop.readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close("end of stream");
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closeAfterWrite) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String command = new String(line, 0, length, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    AsyncLog.debug().append('[').append(clientId).append("] Received: ").append(command).log();
+                    if (!StockServer.handleCommand(clientId, command.trim(), monitoredSymbols, this::send)) {
+                        closeAfterWrite = true;
+                    }
+                } else if (lineLength == MAX_LINE_LENGTH) {
+                    send("ERROR|Command line too long");
+                    closeAfterWrite = true;
+                } else {
+                    if (line == null) {
+                        line = new byte[64];
+                    } else if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            if (closeAfterWrite) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        void send(String message) {
+            queue((message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // written out when the loop flushes
+        void queue(byte[] bytes) {
+            if (closed) return;
+            if (out == null) {
+                out = ByteBuffer.allocate(Math.max(WRITE_BUFFER_SIZE, bytes.length));
+            } else if (out.remaining() < bytes.length) {
+                if (out.position() + bytes.length > MAX_BUFFERED) {
+                    close("slow consumer, " + out.position() + " bytes unsent");
+                    return;
+                }
+                int capacity = Math.min(Math.max(out.capacity() * 2, out.position() + bytes.length), MAX_BUFFERED);
+                out = ByteBuffer.allocate(capacity).put(out.flip());
+            }
+            out.put(bytes);
+            if (!dirty) {
+                dirty = true;
+                loop.dirty.add(this);
+            }
+        }
+
+        void flush() throws IOException {
+            if (closed) return;
+            if (out != null && out.position() > 0) {
+                channel.write(out.flip());
+                out.compact();
+            }
+            boolean pending = out != null && out.position() > 0;
+            if (!pending && closeAfterWrite) {
+                close("quit");
+                return;
+            }
+            if (!pending && out != null && out.capacity() > WRITE_BUFFER_SIZE) {
+                out = null; // caught up after a burst: give the large buffer back
+            }
+            int ops = closeAfterWrite ? 0 : SelectionKey.OP_READ;
+            if (pending) ops |= SelectionKey.OP_WRITE; // socket full, wait until it drains
+            if (key.interestOps() != ops) key.interestOps(ops);
+        }
+
+        void close(String reason) {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            closeQuietly(channel);
+            out = null;
+            for (String symbol : monitoredSymbols) loop.unsubscribe(symbol, this);
+            AsyncLog.info("[SERVER] Client disconnected: " + clientId + " (" + reason + ")");
+            AsyncLog.info("[SERVER] Active clients: " + active.decrementAndGet());
+        }
+    }
+
+    // The symbols of one connection; ADD and DEL in StockServer.handleCommand
+    // keep the loop's subscribers of each symbol up to date through it
+    @SuppressWarnings("serial") // never serialized
+    private static final class Subscriptions extends HashSet<String> {
+        private final Connection connection;
+
+        Subscriptions(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean add(String symbol) {
+            if (!super.add(symbol)) return false;
+            connection.loop.subscribe(symbol, connection);
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object symbol) {
+            if (!super.remove(symbol)) return false;
+            connection.loop.unsubscribe((String) symbol, connection);
+            return true;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 1) {
+            AsyncLog.info("Usage: java StockServerNIO [event_loops]");
+            return;
+        }
+
+        AsyncLog.info("/\\/\\/\\ Stock Monitoring Server (NIO) /\\/\\/\\");
+        AsyncLog.info("Starting server on port " + StockServer.PORT + "...");
+        try {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int loopCount = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(1, Math.min(4, cores / 2));
+            StockServer.initializeStocks();
+            new StockServerNIO(loopCount).start(StockServer.PORT);
+        } catch (NumberFormatException e) {
+            AsyncLog.error("[ERROR] The specified loop count is not a valid number.");
+        } catch (IOException e) {
+            AsyncLog.error("[ERROR] Error initializing the server: " + e.getMessage());
+        }
+    }
+}